@@ -0,0 +1,178 @@
+import java.nio.*;
+import java.nio.charset.*;
+
+// Opcodes and layout of the binary protocol, which a client switches to by sending /binary before it picks a
+// nickname. The server answers that with the text line OK, and from then on everything either way is a frame:
+//
+//   u16 length   bytes that follow, opcode included
+//   u8  opcode
+//   ...          body, depends on the opcode
+//
+// Numbers are big-endian and text is UTF-8 without a trailing LF. Frames from the client carry what the text
+// commands do. Frames from the server that are about another user start with that user's id and nickname:
+//
+//   u32 id       the user's id, for PRIV_ID. 0 for lines replayed from a room's history
+//   u16 length   of the nickname that follows
+//   ...          nickname, then the body
+//
+// Ids are given out by the server per connection and never reused while it runs. Frames don't name rooms, a client
+// is in one room at most and everything it gets from a room is from that one.
+class BinaryProtocol
+{
+  
+  // Client to server, the same numbers as the text commands in CommandParser.
+  static final int NICK = 1;          // name
+  static final int JOIN = 2;          // room
+  static final int LEAVE = 3;
+  static final int BYE = 4;
+  static final int PRIV = 5;          // u16 length, nickname, text
+  static final int STATS = 6;
+  static final int PONG = 7;
+  static final int MESSAGE = 8;       // text
+  static final int PRIV_ID = 9;       // u32 id, text
+  static final int COMPRESS = 10;     // like /compress
+  
+  // Server to client, replies to the client's own commands.
+  static final int OK = 0x81;
+  static final int ERROR = 0x82;      // u8 cause, one of the Metrics causes
+  static final int BYE_REPLY = 0x83;
+  static final int PING = 0x84;
+  static final int STATS_LINE = 0x85; // text, one per figure before the OK
+  
+  // Server to client, about another user (id and nickname first).
+  static final int MESSAGE_FROM = 0x90;  // text
+  static final int PRIVATE_FROM = 0x91;  // text
+  static final int JOINED = 0x92;
+  static final int LEFT = 0x93;
+  static final int NEWNICK = 0x94;       // the nickname is the old one, the body the new one
+  
+  // What a frame's length and opcode take.
+  static final int HEADER = 3;
+  
+  static private final Charset charset = StandardCharsets.UTF_8;
+  
+  // The opcode, id and nickname that start every frame about this user, to have the body appended.
+  static byte[] about(int op, int id, String nick)
+  {
+    
+    byte[] name = nick.getBytes(charset);
+    
+    ByteBuffer b = ByteBuffer.allocate(7 + name.length);
+    
+    b.put((byte)op);
+    b.putInt(id);
+    b.putShort((short)name.length);
+    b.put(name);
+    
+    return b.array();
+    
+  }
+  
+  // The reply opcode for a text status line, 0 if there is none.
+  static int status(String status)
+  {
+    
+    switch (status)
+    {
+      case "OK\n":
+        return OK;
+      
+      case "ERROR\n":
+        return ERROR;
+      
+      case "BYE\n":
+        return BYE_REPLY;
+      
+      case "PING\n":
+        return PING;
+      
+      default:
+        return 0;
+    }
+    
+  }
+  
+  // A complete frame of opcode op and the given body.
+  static byte[] frame(int op, byte[] body)
+  {
+    
+    ByteBuffer b = ByteBuffer.allocate(HEADER + body.length);
+    
+    b.putShort((short)(1 + body.length));
+    b.put((byte)op);
+    b.put(body);
+    
+    return b.array();
+    
+  }
+  
+  // A server frame turned back into the text line the text protocol has for it, LF included, so clients can show
+  // both the same way. buf[start, end) is the frame from its opcode on.
+  static String text(ByteBuffer buf, int start, int end)
+  {
+    
+    int op = buf.get(start) & 0xFF;
+    
+    switch (op)
+    {
+      case OK:
+        return "OK\n";
+      
+      case ERROR:
+        return "ERROR\n";
+      
+      case BYE_REPLY:
+        return "BYE\n";
+      
+      case PING:
+        return "PING\n";
+      
+      case STATS_LINE:
+        return "STATS "+string(buf, start + 1, end)+"\n";
+    }
+    
+    int length = buf.getShort(start + 5) & 0xFFFF;
+    
+    String nick = string(buf, start + 7, start + 7 + length);
+    String body = string(buf, start + 7 + length, end);
+    
+    switch (op)
+    {
+      case MESSAGE_FROM:
+        return "MESSAGE "+nick+" "+body+"\n";
+      
+      case PRIVATE_FROM:
+        return "PRIVATE "+nick+" "+body+"\n";
+      
+      case JOINED:
+        return "JOINED "+nick+"\n";
+      
+      case LEFT:
+        return "LEFT "+nick+"\n";
+      
+      case NEWNICK:
+        return "NEWNICK "+nick+" "+body+"\n";
+      
+      default:
+        return "ERROR\n";
+    }
+    
+  }
+  
+  // Where the body of a server frame about a user starts, buf[start] being its opcode.
+  static int body(ByteBuffer buf, int start)
+  {
+    return start + 7 + (buf.getShort(start + 5) & 0xFFFF);
+  }
+  
+  static private String string(ByteBuffer buf, int start, int end)
+  {
+    
+    byte[] bytes = new byte[end - start];
+    buf.get(start, bytes);
+    
+    return new String(bytes, charset);
+    
+  }
+  
+}
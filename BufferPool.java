@@ -0,0 +1,254 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Pool of direct buffers for the server's network I/O, so reading, encoding and fanning out don't allocate buffers
+// (or make the JDK copy heap buffers into temporary direct ones) once the pool is warm.
+//
+// Buffers come in size classes, powers of two from 64 bytes to 64KB. Memory is allocated in 1MB slabs, each cut into
+// buffers of one class, and a buffer that is no longer used goes back on its class's free list rather than to the
+// garbage collector. Slabs are never freed, up to the pool's limit; past it, and for anything bigger than the largest
+// class, buffers are allocated one by one and left to the garbage collector.
+class BufferPool
+{
+  
+  static private final int MIN_CLASS = 6;
+  static private final int MAX_CLASS = 16;
+  static private final int SLAB = 1 << 20;
+  
+  // A buffer from the pool, shared by everyone who queued it and counting how many that is. Whoever takes it fills
+  // it, after that its bytes don't change until it goes back to the pool with the last release().
+  static class Buffer
+  {
+    
+    // Unique within the pool, so event loops can keep things per buffer in arrays. -1 if not pooled.
+    final int id;
+    
+    // All of the buffer's memory, in write mode for whoever fills it.
+    final ByteBuffer memory;
+    
+    // The same content compressed, made by a Compressor the first time a connection needs it and let go of along
+    // with this buffer. Guarded by the buffer's lock.
+    Buffer compressed;
+    
+    private final BufferPool pool;
+    private final AtomicInteger refs = new AtomicInteger();
+    private int length;
+    
+    private Buffer(BufferPool pool, int id, ByteBuffer memory)
+    {
+      this.pool = pool;
+      this.id = id;
+      this.memory = memory;
+    }
+    
+    // How many bytes were put in the buffer.
+    int length()
+    {
+      return length;
+    }
+    
+    // Done filling the buffer, its content is what was put in memory.
+    Buffer filled()
+    {
+      length = memory.position();
+      return this;
+    }
+    
+    Buffer retain()
+    {
+      refs.incrementAndGet();
+      return this;
+    }
+    
+    void release()
+    {
+      
+      int left = refs.decrementAndGet();
+      
+      if (left == 0)
+      {
+        
+        if (compressed != null)
+        {
+          compressed.release();
+          compressed = null;
+        }
+        
+        if (id >= 0)
+        {
+          pool.give(this);
+        }
+      }
+      
+      // Someone else may have it by now, that's a bug in whoever released it.
+      else if (left < 0)
+      {
+        throw new IllegalStateException( "Buffer released once too often" );
+      }
+      
+    }
+    
+    // A new read-only view of the content, for when a cached one won't do.
+    ByteBuffer duplicate()
+    {
+      return memory.asReadOnlyBuffer().limit(length).position(0);
+    }
+    
+  }
+  
+  // Free buffers of one size class, as a stack so the most recently used (and cached) memory is handed out first.
+  static private class FreeList
+  {
+    
+    Buffer[] buffers = new Buffer[16];
+    int size;
+    
+  }
+  
+  private final FreeList[] free = new FreeList[MAX_CLASS + 1];
+  
+  // Most slab memory to allocate, in bytes.
+  private final long limit;
+  
+  private final AtomicLong slabBytes = new AtomicLong();
+  private final AtomicInteger ids = new AtomicInteger();
+  
+  // Buffers handed out in total, those that weren't from a slab, and those not given back yet.
+  private final AtomicLong taken = new AtomicLong();
+  private final AtomicLong unpooled = new AtomicLong();
+  private final AtomicLong inUse = new AtomicLong();
+  
+  BufferPool(long limit)
+  {
+    
+    this.limit = limit;
+    
+    for (int i = MIN_CLASS; i <= MAX_CLASS; i++)
+    {
+      free[i] = new FreeList();
+    }
+    
+  }
+  
+  // A cleared buffer of at least size bytes, with one reference to it.
+  Buffer take(int size)
+  {
+    
+    taken.incrementAndGet();
+    
+    int sizeClass = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+    
+    Buffer b = sizeClass <= MAX_CLASS ? pop(sizeClass) : null;
+    
+    if (b == null)
+    {
+      unpooled.incrementAndGet();
+      b = new Buffer(this, -1, ByteBuffer.allocateDirect(size));
+    }
+    
+    else
+    {
+      inUse.incrementAndGet();
+    }
+    
+    b.memory.clear();
+    b.length = 0;
+    b.refs.set(1);
+    
+    return b;
+    
+  }
+  
+  private Buffer pop(int sizeClass)
+  {
+    
+    FreeList list = free[sizeClass];
+    
+    synchronized (list)
+    {
+      
+      if (list.size == 0 && !grow(list, sizeClass))
+      {
+        return null;
+      }
+      
+      Buffer b = list.buffers[--list.size];
+      list.buffers[list.size] = null;
+      
+      return b;
+      
+    }
+    
+  }
+  
+  // Cut a new slab into buffers for list, holding its lock. False if the pool is at its limit.
+  private boolean grow(FreeList list, int sizeClass)
+  {
+    
+    if (slabBytes.addAndGet(SLAB) > limit)
+    {
+      slabBytes.addAndGet(-SLAB);
+      return false;
+    }
+    
+    ByteBuffer slab = ByteBuffer.allocateDirect(SLAB);
+    int size = 1 << sizeClass;
+    
+    for (int off = 0; off < SLAB; off += size)
+    {
+      push(list, new Buffer(this, ids.getAndIncrement(), slab.slice(off, size)));
+    }
+    
+    return true;
+    
+  }
+  
+  private void give(Buffer b)
+  {
+    
+    inUse.decrementAndGet();
+    
+    FreeList list = free[Integer.numberOfTrailingZeros(b.memory.capacity())];
+    
+    synchronized (list)
+    {
+      push(list, b);
+    }
+    
+  }
+  
+  static private void push(FreeList list, Buffer b)
+  {
+    
+    if (list.size == list.buffers.length)
+    {
+      list.buffers = Arrays.copyOf(list.buffers, list.size * 2);
+    }
+    
+    list.buffers[list.size++] = b;
+    
+  }
+  
+  // Highest id handed out so far, plus one.
+  int ids()
+  {
+    return ids.get();
+  }
+  
+  // What the pool has been up to, for the server's stats.
+  Map<String, Long> stats()
+  {
+    
+    Map<String, Long> stats = new LinkedHashMap<>();
+    
+    stats.put("slab.bytes", slabBytes.get());
+    stats.put("in.use", inUse.get());
+    stats.put("taken", taken.get());
+    stats.put("unpooled", unpooled.get());
+    
+    return stats;
+    
+  }
+  
+}
@@ -0,0 +1,769 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Benchmark suite for the hot paths of ChatServer. Run with:
+//
+//   javac *.java && java ChatBench [benchmark...]
+//
+// Without arguments every benchmark runs, otherwise only those named (e.g. fanout, or fanout:1000 for one size).
+// Like JMH, each benchmark gets its own JVM, a few warm up iterations and then timed iterations, and the score is the
+// mean time per unit of work with its 99.9% confidence interval, plus the bytes allocated per unit. Settings are
+// system properties: bench.warmup and bench.iterations (counts), bench.time (ms per iteration), bench.fork (false
+// runs everything in this JVM).
+//
+// No sockets are involved, each benchmark runs the server's code or reproduces the work the server does for a message
+// so that the numbers only reflect the code being measured. Benchmarks ending in .old are the code that was replaced,
+// kept as a baseline.
+public class ChatBench
+{
+  
+  static private final int warmups = Integer.getInteger("bench.warmup", 3);
+  static private final int iterations = Integer.getInteger("bench.iterations", 5);
+  static private final long time = Long.getLong("bench.time", 1000);
+  static private final boolean fork = Boolean.parseBoolean(System.getProperty("bench.fork", "true"));
+  
+  static private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+  
+  // Keeps the JIT from optimising away the work being measured.
+  static private long sink;
+  
+  // Anything else a benchmark has to say about its results, like how much compressing saved.
+  static private String note = "";
+  
+  // One operation of a benchmark, returns how many units of work it did (lines, deliveries, ...), the score is per unit.
+  interface Op
+  {
+    int run() throws Exception;
+  }
+  
+  interface Setup
+  {
+    Op create(int param) throws Exception;
+  }
+  
+  static private class Benchmark
+  {
+    
+    public String name;
+    public int param;
+    public String unit;
+    public Setup setup;
+    
+    public Benchmark(String name, int param, String unit, Setup setup)
+    {
+      this.name = name;
+      this.param = param;
+      this.unit = unit;
+      this.setup = setup;
+    }
+    
+    public String id()
+    {
+      return param > 0 ? name+":"+param : name;
+    }
+    
+  }
+  
+  static private final ArrayList<Benchmark> benchmarks = new ArrayList<>();
+  
+  static
+  {
+    
+    benchmarks.add(new Benchmark("framing", 1, "line", p -> framing(p, false)));
+    benchmarks.add(new Benchmark("framing", 64, "line", p -> framing(p, false)));
+    benchmarks.add(new Benchmark("framing.old", 1, "line", p -> framing(p, true)));
+    benchmarks.add(new Benchmark("framing.old", 64, "line", p -> framing(p, true)));
+    
+    benchmarks.add(new Benchmark("parsing", 0, "line", p -> parsing(false)));
+    benchmarks.add(new Benchmark("parsing.old", 0, "line", p -> parsing(true)));
+    benchmarks.add(new Benchmark("parsing.binary", 0, "line", p -> binaryParsing()));
+    
+    benchmarks.add(new Benchmark("encode", 0, "line", p -> encode(false)));
+    benchmarks.add(new Benchmark("encode.old", 0, "line", p -> encode(true)));
+    benchmarks.add(new Benchmark("encode.binary", 0, "line", p -> binaryEncode()));
+    
+    for (int level : new int[] { 1, 6, 9 })
+    {
+      benchmarks.add(new Benchmark("compress", level, "line", p -> compress(p, true)));
+      benchmarks.add(new Benchmark("compress.own", level, "line", p -> compress(p, false)));
+    }
+    
+    for (int members : new int[] { 10, 1000, 100000 })
+    {
+      benchmarks.add(new Benchmark("fanout", members, "delivery", p -> fanOut(p, false)));
+      benchmarks.add(new Benchmark("fanout.old", members, "delivery", p -> fanOut(p, true)));
+    }
+    
+    for (int users : new int[] { 1000, 200000 })
+    {
+      benchmarks.add(new Benchmark("nicks", users, "lookup", p -> nicks(p, false)));
+      benchmarks.add(new Benchmark("nicks.old", users, "lookup", p -> nicks(p, true)));
+    }
+    
+  }
+  
+  static public void main( String args[] ) throws Exception
+  {
+    
+    System.out.println( String.format( "%-24s %20s %16s", "Benchmark", "ns/unit", "B/unit" ) );
+    
+    for (Benchmark b : benchmarks)
+    {
+      
+      if (!selected(b, args))
+      {
+        continue;
+      }
+      
+      if (fork)
+      {
+        System.out.println( forked(b) );
+      }
+      
+      else
+      {
+        System.out.println( measure(b) );
+      }
+    }
+    
+    if (sink == 42)
+    {
+      System.out.println();
+    }
+    
+  }
+  
+  static private boolean selected(Benchmark b, String[] args)
+  {
+    
+    if (args.length == 0)
+    {
+      return true;
+    }
+    
+    for (String a : args)
+    {
+      if (b.id().equals(a) || b.name.equals(a))
+      {
+        return true;
+      }
+    }
+    
+    return false;
+    
+  }
+  
+  // Run one benchmark in a fresh JVM, so what the JIT learned from the others doesn't colour its numbers.
+  static private String forked(Benchmark b) throws Exception
+  {
+    
+    String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+    
+    ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+      "-Dbench.fork=false", "-Dbench.warmup="+warmups, "-Dbench.iterations="+iterations, "-Dbench.time="+time,
+      "ChatBench", b.id());
+    
+    pb.redirectErrorStream(true);
+    
+    Process p = pb.start();
+    
+    BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+    
+    // Skip the header the child prints, keep its result line.
+    String line, result = null;
+    
+    while ((line = in.readLine()) != null)
+    {
+      result = line;
+    }
+    
+    p.waitFor();
+    
+    return result;
+    
+  }
+  
+  static private String measure(Benchmark b) throws Exception
+  {
+    
+    Op op = b.setup.create(b.param);
+    
+    for (int i = 0; i < warmups; i++)
+    {
+      iteration(op);
+    }
+    
+    double[] ns = new double[iterations];
+    double bytes = 0;
+    
+    for (int i = 0; i < iterations; i++)
+    {
+      double[] r = iteration(op);
+      
+      ns[i] = r[0];
+      bytes += r[1] / iterations;
+    }
+    
+    double mean = 0;
+    
+    for (double n : ns)
+    {
+      mean += n / iterations;
+    }
+    
+    double var = 0;
+    
+    for (double n : ns)
+    {
+      var += (n - mean) * (n - mean) / Math.max(1, iterations - 1);
+    }
+    
+    // 99.9% interval with the normal approximation, good enough to tell noise from a real change.
+    double error = 3.29 * Math.sqrt(var / iterations);
+    
+    return String.format( "%-24s %10.1f +- %6.1f %16.1f   per %s%s", b.id(), mean, error, bytes, b.unit, note );
+    
+  }
+  
+  // Run op for bench.time and return { ns per unit, bytes allocated per unit }.
+  static private double[] iteration(Op op) throws Exception
+  {
+    
+    long units = 0;
+    long before = allocated();
+    long start = System.nanoTime();
+    long deadline = start + time * 1000000L;
+    long now;
+    
+    do
+    {
+      units += op.run();
+      now = System.nanoTime();
+    }
+    while (now < deadline);
+    
+    return new double[] { (double)(now - start) / units, (double)(allocated() - before) / units };
+    
+  }
+  
+  // 64 lines of chat as they come off the wire, read linesPerRead lines at a time. The old route decoded every read
+  // as a whole into a String and appended it to a StringBuffer until it ended in LF.
+  static private Op framing(int linesPerRead, boolean old)
+  {
+    
+    byte[] line = "hey all, is anyone else seeing the build break on the release branch?\n".getBytes(StandardCharsets.UTF_8);
+    
+    byte[] wire = new byte[line.length * 64];
+    
+    for (int i = 0; i < 64; i++)
+    {
+      System.arraycopy(line, 0, wire, i * line.length, line.length);
+    }
+    
+    int chunk = line.length * linesPerRead;
+    
+    ByteBuffer shared = ByteBuffer.allocate(16384);
+    
+    if (old)
+    {
+      CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+      StringBuffer pending = new StringBuffer();
+      
+      return () -> {
+        
+        for (int off = 0; off < wire.length; off += chunk)
+        {
+          shared.clear();
+          shared.put(wire, off, chunk);
+          shared.flip();
+          
+          String message = decoder.decode(shared).toString();
+          
+          pending.append(message);
+          
+          if (message.endsWith("\n"))
+          {
+            sink += pending.toString().charAt(0);
+            pending.setLength(0);
+          }
+        }
+        
+        return 64;
+      };
+    }
+    
+    LineFramer framer = new LineFramer(16384, ChatServer.pool);
+    
+    LineFramer.Handler handler = new LineFramer.Handler()
+    {
+      public void line(ByteBuffer buf, int start, int end)
+      {
+        sink += CommandParser.isCommand(buf, start, end) ? 1 : end - start;
+      }
+      
+      public void overflow()
+      {
+      }
+    };
+    
+    return () -> {
+      
+      for (int off = 0; off < wire.length; off += chunk)
+      {
+        ByteBuffer target = framer.target(shared);
+        
+        target.put(wire, off, chunk);
+        framer.frame(target, handler);
+      }
+      
+      return 64;
+    };
+    
+  }
+  
+  // A mix of command lines, decoded and split with a Scanner the old way or tokenized in place by CommandParser.
+  static private Op parsing(boolean old)
+  {
+    
+    String[] lines = { "/priv bob hey, are you coming tonight?\n", "/nick alice\n", "/join lobby\n", "/leave\n", "/bye\n" };
+    
+    ByteBuffer[] framed = new ByteBuffer[lines.length];
+    
+    for (int i = 0; i < lines.length; i++)
+    {
+      framed[i] = ByteBuffer.wrap(lines[i].getBytes(StandardCharsets.UTF_8));
+    }
+    
+    CommandParser parser = new CommandParser();
+    
+    return () -> {
+      
+      for (ByteBuffer line : framed)
+      {
+        if (old)
+        {
+          scanner(line);
+        }
+        
+        else
+        {
+          parser(parser, line);
+        }
+      }
+      
+      return framed.length;
+    };
+    
+  }
+  
+  // What processInput used to do with a command line: decode it, split it with a Scanner and cut out the /priv body.
+  static private void scanner(ByteBuffer line)
+  {
+    
+    String message = new String(line.array(), 0, line.limit(), StandardCharsets.UTF_8);
+    
+    Scanner cmdScanner = new Scanner(message);
+    
+    String cmd = cmdScanner.next();
+    
+    switch (cmd)
+    {
+      case "/nick":
+      case "/join":
+        
+        if (cmdScanner.hasNext())
+        {
+          sink += cmdScanner.next().length();
+        }
+        
+        break;
+      
+      case "/priv":
+        
+        if (cmdScanner.hasNext())
+        {
+          String to = cmdScanner.next();
+          String nMessage = message.substring(message.indexOf(to), message.length()-1);
+          
+          sink += nMessage.substring(to.length()+1, nMessage.length()).length();
+        }
+        
+        break;
+      
+      default:
+        
+        sink += cmdScanner.hasNext() ? 1 : 0;
+        
+        break;
+    }
+    
+  }
+  
+  // What processInput does now, the same work on the framed bytes.
+  static private void parser(CommandParser parser, ByteBuffer line)
+  {
+    
+    parser.parse(line, 0, line.limit());
+    
+    switch (parser.command)
+    {
+      case CommandParser.NICK:
+      case CommandParser.JOIN:
+        
+        if (parser.args > 0)
+        {
+          sink += parser.argument(line).length();
+        }
+        
+        break;
+      
+      case CommandParser.PRIV:
+        
+        if (parser.args > 0)
+        {
+          sink += parser.argument(line).length() + line.limit() - parser.argEnd;
+        }
+        
+        break;
+      
+      default:
+        
+        sink += parser.args;
+        
+        break;
+    }
+    
+  }
+  
+  // The same commands as binary frames, taken apart the way processFrame does: the opcode says what it is and the
+  // frame where the arguments are.
+  static private Op binaryParsing()
+  {
+    
+    // /priv's nickname and text, after the nickname's length.
+    byte[] priv = "bobhey, are you coming tonight?".getBytes(StandardCharsets.UTF_8);
+    
+    byte[][] frames = {
+      BinaryProtocol.frame(BinaryProtocol.PRIV, ByteBuffer.allocate(2 + priv.length).putShort((short)3).put(priv).array()),
+      BinaryProtocol.frame(BinaryProtocol.NICK, "alice".getBytes(StandardCharsets.UTF_8)),
+      BinaryProtocol.frame(BinaryProtocol.JOIN, "lobby".getBytes(StandardCharsets.UTF_8)),
+      BinaryProtocol.frame(BinaryProtocol.LEAVE, new byte[0]),
+      BinaryProtocol.frame(BinaryProtocol.BYE, new byte[0])
+    };
+    
+    ByteBuffer[] framed = new ByteBuffer[frames.length];
+    
+    for (int i = 0; i < frames.length; i++)
+    {
+      framed[i] = ByteBuffer.wrap(frames[i]);
+    }
+    
+    CommandParser parser = new CommandParser();
+    
+    return () -> {
+      
+      for (ByteBuffer frame : framed)
+      {
+        frame(parser, frame);
+      }
+      
+      return framed.length;
+    };
+    
+  }
+  
+  // One frame, its opcode after the length.
+  static private void frame(CommandParser parser, ByteBuffer frame)
+  {
+    
+    int end = frame.limit();
+    
+    switch (frame.get(2))
+    {
+      case BinaryProtocol.NICK:
+      case BinaryProtocol.JOIN:
+        
+        if (CommandParser.isWord(frame, 3, end))
+        {
+          sink += parser.name(frame, 3, end).length();
+        }
+        
+        break;
+      
+      case BinaryProtocol.PRIV:
+        
+        int to = 5 + (frame.getShort(3) & 0xFFFF);
+        
+        sink += parser.name(frame, 5, to).length() + end - to;
+        
+        break;
+      
+      default:
+        
+        sink += end - 3;
+        
+        break;
+    }
+    
+  }
+  
+  // A chat line turned into the MESSAGE line that goes out, in a buffer from the pool and given back, or the old way
+  // in a new direct buffer every time.
+  static private Op encode(boolean old)
+  {
+    
+    byte[] prefix = "MESSAGE alice ".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer line = ByteBuffer.wrap("the quick brown fox jumps over the lazy dog, again and again\n".getBytes(StandardCharsets.UTF_8));
+    
+    return () -> {
+      
+      for (int i = 0; i < 64; i++)
+      {
+        if (old)
+        {
+          ByteBuffer bb = ByteBuffer.allocateDirect(prefix.length + line.limit());
+          bb.put(prefix);
+          bb.put(prefix.length, line, 0, line.limit());
+          bb.clear();
+          
+          sink += bb.asReadOnlyBuffer().remaining();
+        }
+        
+        else
+        {
+          BufferPool.Buffer b = ChatServer.encode(prefix, line, 0, line.limit());
+          
+          sink += b.length();
+          b.release();
+        }
+      }
+      
+      return 64;
+    };
+    
+  }
+  
+  // The same chat line as the MESSAGE_FROM frame that goes out to binary clients.
+  static private Op binaryEncode()
+  {
+    
+    byte[] about = BinaryProtocol.about(BinaryProtocol.MESSAGE_FROM, 1, "alice");
+    ByteBuffer text = ByteBuffer.wrap("the quick brown fox jumps over the lazy dog, again and again".getBytes(StandardCharsets.UTF_8));
+    
+    return () -> {
+      
+      for (int i = 0; i < 64; i++)
+      {
+        BufferPool.Buffer b = ChatServer.encodeFrame(about, text, 0, text.limit());
+        
+        sink += b.length();
+        b.release();
+      }
+      
+      return 64;
+    };
+    
+  }
+  
+  // 64 chat lines as they go out to a client that sent /compress, at the given deflate level, chunk headers included.
+  // Through a room's stream, which costs this much once per line whatever the size of the room, or each on its own
+  // like replies and private messages, which keeps short lines from compressing much at all.
+  static private Op compress(int level, boolean stream)
+  {
+    
+    String[] words = { "the", "a", "is", "what", "anyone", "going", "tonight", "lol", "yes", "no", "I", "think", "so",
+      "server", "down", "again", "who", "has", "the", "link", "meeting", "at", "five", "see", "you", "there", "thanks",
+      "ok", "brb", "coffee", "build", "broke", "on", "main", "fixed", "it", "now", "ping", "me", "later" };
+    
+    Random random = new Random(42);
+    BufferPool.Buffer[] lines = new BufferPool.Buffer[64];
+    long plain = 0;
+    
+    for (int i = 0; i < lines.length; i++)
+    {
+      StringBuilder sb = new StringBuilder("MESSAGE user"+random.nextInt(20)+" ");
+      
+      for (int n = 3 + random.nextInt(15); n > 0; n--)
+      {
+        sb.append(words[random.nextInt(words.length)]).append(n > 1 ? " " : "\n");
+      }
+      
+      lines[i] = ChatServer.encode(sb.toString());
+      plain += lines[i].length();
+    }
+    
+    // No threshold, so every line is deflated even when it ends up stored.
+    Compressor compressor = new Compressor(ChatServer.pool, level, 0);
+    Deflater deflater = compressor.stream();
+    
+    Op op = () -> {
+      
+      long bytes = 0;
+      
+      for (BufferPool.Buffer line : lines)
+      {
+        BufferPool.Buffer b = stream ? compressor.deflate(deflater, line, Compressor.ROOM) : compressor.deflate(line);
+        
+        bytes += b.length();
+        b.release();
+      }
+      
+      sink += bytes;
+      
+      return lines.length;
+    };
+    
+    // How much one pass saves, the stream after a first pass so its window is warm like a busy room's.
+    long compressed = 0;
+    
+    try
+    {
+      op.run();
+      
+      long before = sink;
+      
+      op.run();
+      compressed = sink - before;
+    }
+    
+    catch( Exception e )
+    {
+      throw new IllegalStateException( e );
+    }
+    
+    note = String.format( "   %d of %d bytes, saves %.0f%%", compressed, plain, 100.0 * (plain - compressed) / plain );
+    
+    return op;
+    
+  }
+  
+  // One chat line delivered to every member of a room: queued on each member's outbound queue, like Client.out, and
+  // then taken by the "socket". The old route encoded and wrapped the line again for every member.
+  static private Op fanOut(int members, boolean old)
+  {
+    
+    byte[] prefix = "MESSAGE alice ".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer line = ByteBuffer.wrap("the quick brown fox jumps over the lazy dog, again and again\n".getBytes(StandardCharsets.UTF_8));
+    String message = "MESSAGE alice the quick brown fox jumps over the lazy dog, again and again\n";
+    
+    ArrayList<ConcurrentLinkedQueue<Object>> queues = new ArrayList<>();
+    
+    for (int i = 0; i < members; i++)
+    {
+      queues.add(new ConcurrentLinkedQueue<>());
+    }
+    
+    return () -> {
+      
+      if (old)
+      {
+        for (ConcurrentLinkedQueue<Object> q : queues)
+        {
+          q.add(ByteBuffer.wrap(message.getBytes()));
+        }
+      }
+      
+      else
+      {
+        BufferPool.Buffer payload = ChatServer.encode(prefix, line, 0, line.limit());
+        
+        for (ConcurrentLinkedQueue<Object> q : queues)
+        {
+          q.add(payload.retain());
+        }
+        
+        payload.release();
+      }
+      
+      // Stand-in for the sockets taking everything that was queued.
+      for (ConcurrentLinkedQueue<Object> q : queues)
+      {
+        Object o;
+        
+        while ((o = q.poll()) != null)
+        {
+          if (o instanceof BufferPool.Buffer)
+          {
+            BufferPool.Buffer b = (BufferPool.Buffer)o;
+            
+            sink += b.length();
+            b.release();
+          }
+          
+          else
+          {
+            sink += ((ByteBuffer)o).remaining();
+          }
+        }
+      }
+      
+      return members;
+    };
+    
+  }
+  
+  // Finding the recipient of a /priv among the connected clients, through the nickname index or the old scan over
+  // every client.
+  static private Op nicks(int users, boolean old)
+  {
+    
+    ConcurrentHashMap<String, String> index = new ConcurrentHashMap<>();
+    
+    for (int i = 0; i < users; i++)
+    {
+      index.put("user"+i, "user"+i);
+    }
+    
+    // A handful of recipients that keep coming back, like the people someone is talking to.
+    ByteBuffer[] lines = new ByteBuffer[64];
+    
+    Random random = new Random(42);
+    
+    for (int i = 0; i < lines.length; i++)
+    {
+      lines[i] = ByteBuffer.wrap(("/priv user"+random.nextInt(users)+" are you there?\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    CommandParser parser = new CommandParser();
+    
+    return () -> {
+      
+      for (ByteBuffer line : lines)
+      {
+        parser.parse(line, 0, line.limit());
+        
+        String to = parser.argument(line);
+        
+        if (old)
+        {
+          for (Map.Entry<String, String> entry : index.entrySet())
+          {
+            if (entry.getValue().compareTo(to) == 0)
+            {
+              sink++;
+            }
+          }
+        }
+        
+        else
+        {
+          sink += index.get(to).length();
+        }
+      }
+      
+      return lines.length;
+    };
+    
+  }
+  
+  static private long allocated()
+  {
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+  
+}
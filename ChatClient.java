@@ -1,6 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
@@ -18,12 +22,40 @@ public class ChatClient
   // Se for necessÃ¡rio adicionar variÃ¡veis ao objecto ChatClient, devem
   // ser colocadas aqui
   
-  private static Socket sClient;
+  // With -Dclient.binary=true the client switches to the binary protocol, what the user types is sent as frames and
+  // what comes back is shown as the text protocol's lines.
+  private static final boolean binary = Boolean.getBoolean("client.binary");
   
-  private static DataOutputStream outputToServer;
-  private static BufferedReader input;
+  // With -Dclient.compress=true the server compresses everything it sends, which is inflated by Compressor.Input.
+  private static final boolean compress = Boolean.getBoolean("client.compress");
   
-  private static Scanner scanner;
+  // Lines kept in the chat area, older ones are trimmed off the top.
+  private static final int scrollback = Integer.getInteger("client.scrollback", 5000);
+  
+  // How often what came in is shown, in milliseconds. Lines are added to the chat area in one go per frame, however
+  // many arrived in between.
+  private static final int frameMillis = Integer.getInteger("client.frameMillis", 16);
+  
+  // Pause before connecting again after the connection is lost, in milliseconds, doubled after every failed attempt
+  // up to 30 seconds.
+  private static final long reconnect = Long.getLong("client.reconnect", 1000);
+  
+  private static final Charset charset = StandardCharsets.UTF_8;
+  
+  private final String server;
+  private final int port;
+  
+  private final Network network;
+  
+  // What the user typed and the network thread hasn't sent yet, oldest first.
+  private final ConcurrentLinkedQueue<String> outbox = new ConcurrentLinkedQueue<>();
+  
+  // Lines from the server waiting for the next frame, at most scrollback of them since any more would be trimmed
+  // as soon as they are shown.
+  private final ArrayDeque<String> incoming = new ArrayDeque<>();
+  
+  // Set by /bye, the client exits once the server closes the connection instead of connecting again.
+  private volatile boolean bye;
   
   // MÃ©todo a usar para acrescentar uma string Ã  caixa de texto
   // * NÃƒO MODIFICAR *
@@ -73,9 +105,69 @@ public class ChatClient
     // Se for necessÃ¡rio adicionar cÃ³digo de inicializaÃ§Ã£o ao
     // construtor, deve ser colocado aqui
     
-    ChatClient.sClient = new Socket(server, port);
-    ChatClient.outputToServer = new DataOutputStream(sClient.getOutputStream());
-    ChatClient.input = new BufferedReader(new InputStreamReader(sClient.getInputStream(), "UTF-8"));
+    this.server = server;
+    this.port = port;
+    this.network = new Network();
+    
+    // Once per frame on the EDT, whatever came in since the last one.
+    new javax.swing.Timer(frameMillis, e -> showIncoming()).start();
+  }
+  
+  
+  // Have the next frame show text.
+  private void show(String text)
+  {
+    
+    synchronized (incoming)
+    {
+      incoming.add(text);
+      
+      if (incoming.size() > scrollback)
+      {
+        incoming.poll();
+      }
+    }
+    
+  }
+  
+  
+  // Add everything that came in to the chat area at once, and trim it to the scrollback. Run on the EDT.
+  private void showIncoming()
+  {
+    
+    StringBuilder batch = new StringBuilder();
+    
+    synchronized (incoming)
+    {
+      for (String text : incoming)
+      {
+        batch.append(text);
+      }
+      
+      incoming.clear();
+    }
+    
+    if (batch.length() == 0)
+    {
+      return;
+    }
+    
+    printMessage(batch.toString());
+    
+    int excess = chatArea.getLineCount() - 1 - scrollback;
+    
+    if (excess > 0)
+    {
+      try
+      {
+        chatArea.replaceRange("", 0, chatArea.getLineStartOffset(excess));
+      }
+      
+      catch (javax.swing.text.BadLocationException e)
+      {
+      }
+    }
+    
   }
   
   
@@ -85,9 +177,14 @@ public class ChatClient
   {
     // PREENCHER AQUI com cÃ³digo que envia a mensagem ao servidor
     
-    message += "\n";
+    if (message.trim().equals("/bye"))
+    {
+      bye = true;
+    }
     
-    outputToServer.write(message.getBytes("UTF-8"));
+    // The network thread encodes it, coalesced with whatever else is waiting, into its next write.
+    outbox.add(message);
+    network.wakeup();
     
   }
   
@@ -97,45 +194,467 @@ public class ChatClient
   {
     // PREENCHER AQUI
     
-    // Thread interface for the nonblocking input to server
-    InputThread in = new InputThread();
-    new Thread(in).start();
+    new Thread(network, "network").start();
     
   }
   
-  private class InputThread implements Runnable
+  // What the user typed as a binary frame, the command it is or a chat line.
+  private static byte[] toFrame(String message) throws IOException
   {
+    
+    if (!message.startsWith("/") || message.startsWith("//"))
+    {
+      return BinaryProtocol.frame(BinaryProtocol.MESSAGE, message.getBytes("UTF-8"));
+    }
+    
+    String[] words = message.split("\\s+", 2);
+    String rest = words.length > 1 ? words[1] : "";
+    
+    switch (words[0])
+    {
+      case "/nick":
+        return BinaryProtocol.frame(BinaryProtocol.NICK, rest.trim().getBytes("UTF-8"));
+      
+      case "/join":
+        return BinaryProtocol.frame(BinaryProtocol.JOIN, rest.trim().getBytes("UTF-8"));
+      
+      case "/leave":
+        return BinaryProtocol.frame(BinaryProtocol.LEAVE, new byte[0]);
+      
+      case "/bye":
+        return BinaryProtocol.frame(BinaryProtocol.BYE, new byte[0]);
+      
+      case "/stats":
+        return BinaryProtocol.frame(BinaryProtocol.STATS, new byte[0]);
+      
+      case "/pong":
+        return BinaryProtocol.frame(BinaryProtocol.PONG, new byte[0]);
+      
+      case "/priv":
+        
+        // u16 length and the nickname, then the text.
+        String[] to = rest.split("\\s", 2);
+        byte[] nick = to[0].getBytes("UTF-8");
+        byte[] text = (to.length > 1 ? to[1] : "").getBytes("UTF-8");
+        
+        ByteBuffer body = ByteBuffer.allocate(2 + nick.length + text.length);
+        body.putShort((short)nick.length).put(nick).put(text);
+        
+        return BinaryProtocol.frame(BinaryProtocol.PRIV, body.array());
+      
+      default:
+        
+        // No such command, the server answers ERROR to an opcode it doesn't know like it does to text.
+        return BinaryProtocol.frame(0, message.getBytes("UTF-8"));
+    }
+    
+  }
+  
+  // The connection to the server, on a thread of its own with a selector. It connects, switches to compression and
+  // the binary protocol if asked to, and from then on writes what the user typed and hands what comes back to the
+  // UI. When the connection is lost it connects again after a pause, and picks up the nickname and room it had.
+  private class Network implements Runnable, LineFramer.Handler
+  {
+    
+    private static final int CONNECTING = 0;
+    private static final int COMPRESS = 1;
+    private static final int BINARY = 2;
+    private static final int READY = 3;
+    
+    private final Selector selector;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private int state;
+    
+    // What this connection ended up with, the server may have said no to either.
+    private boolean compressed;
+    private boolean framed;
+    
+    // For a compressed connection the chunks are inflated before they are framed.
+    private Compressor.Input inflater;
+    private LineFramer framer;
+    private final BufferPool pool = new BufferPool(1 << 20);
+    
+    // The reply to /compress, which comes before compression starts.
+    private final StringBuilder reply = new StringBuilder();
+    
+    private final ByteBuffer read = ByteBuffer.allocate(65536);
+    private final ByteBuffer shared = ByteBuffer.allocate(65536);
+    
+    // Everything to be written, in write mode. What the user typed in the meantime goes out in one write.
+    private ByteBuffer out = ByteBuffer.allocate(4096);
+    
+    // The last /nick and /join sent, to send again after connecting again. room is null after /leave.
+    private String nick;
+    private String room;
+    
+    // Whether it got as far as READY before, it's a reconnect from then on.
+    private boolean connected;
+    
+    Network() throws IOException
+    {
+      this.selector = Selector.open();
+    }
+    
+    // Called by the EDT once something is waiting in the outbox.
+    void wakeup()
+    {
+      selector.wakeup();
+    }
+    
     @Override
     public void run()
     {
-      try
+      
+      long pause = reconnect;
+      
+      while (true)
       {
-        String message, command="";
+        
+        try
+        {
+          session();
+        }
+        
+        catch (IOException e)
+        {
+          show("Connection to "+server+":"+port+" failed: "+e.getMessage()+"\n");
+        }
+        
+        close();
+        
+        if (bye)
+        {
+          break;
+        }
+        
+        // It got in this time, so start over with a short pause.
+        if (state == READY)
+        {
+          pause = reconnect;
+        }
+        
+        show("Reconnecting in "+pause / 1000.0+"s\n");
+        
+        try
+        {
+          Thread.sleep(pause);
+        }
+        
+        catch (InterruptedException e)
+        {
+          break;
+        }
+        
+        pause = Math.min(pause * 2, 30000);
+      }
+      
+      new java.util.Timer().schedule( 
+        new java.util.TimerTask() {
+          @Override
+          public void run() {
+            System.exit(0);
+          }
+        }, 
+        5000 
+      );
+      
+    }
     
-        while ((message = input.readLine()) != null)
+    // One connection, from connecting until the server closes it.
+    private void session() throws IOException
+    {
+      
+      state = CONNECTING;
+      compressed = false;
+      framed = false;
+      inflater = null;
+      framer = new LineFramer(65536, pool);
+      reply.setLength(0);
+      out.clear();
+      
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      channel.connect(new InetSocketAddress(server, port));
+      
+      key = channel.register(selector, SelectionKey.OP_CONNECT);
+      
+      while (true)
+      {
+        
+        selector.select();
+        
+        // A key that wasn't selected keeps its last ready set, so it's only looked at when it was.
+        boolean selected = selector.selectedKeys().remove(key);
+        
+        if (selected && key.isConnectable())
+        {
+          channel.finishConnect();
+          key.interestOps(SelectionKey.OP_READ);
+          
+          if (compress)
+          {
+            state = COMPRESS;
+            write("/compress");
+          }
+          
+          else
+          {
+            compressed();
+          }
+        }
+        
+        else if (selected && key.isReadable())
         {
+          read.clear();
           
-          scanner = new Scanner(message);
+          if (channel.read(read) < 0)
+          {
+            show("Connection closed by the server\n");
+            return;
+          }
           
-          printMessage(message+"\n");
+          read.flip();
+          received(read);
+        }
+        
+        if (state == READY)
+        {
+          String message;
           
+          while ((message = outbox.poll()) != null)
+          {
+            write(message);
+          }
+        }
+        
+        flush();
+      }
+      
+    }
+    
+    // Past /compress, on to /binary.
+    private void compressed() throws IOException
+    {
+      
+      if (binary)
+      {
+        state = BINARY;
+        write("/binary");
+      }
+      
+      else
+      {
+        ready();
+      }
+      
+    }
+    
+    // All set up, pick up where the last connection left off.
+    private void ready() throws IOException
+    {
+      
+      state = READY;
+      
+      if (connected)
+      {
+        show("Reconnected to "+server+":"+port+"\n");
+      }
+      
+      connected = true;
+      
+      if (nick != null)
+      {
+        write(nick);
+      }
+      
+      if (room != null)
+      {
+        write(room);
+      }
+      
+    }
+    
+    private void received(ByteBuffer raw) throws IOException
+    {
+      
+      // The reply to /compress is a text line, anything after it is compressed already.
+      while (state == COMPRESS && raw.hasRemaining())
+      {
+        byte b = raw.get();
+        
+        if (b != '\n')
+        {
+          reply.append((char)b);
+          continue;
         }
         
-        new java.util.Timer().schedule( 
-          new java.util.TimerTask() {
-            @Override
-            public void run() {
-              System.exit(0);
-            }
-          }, 
-          5000 
-        );
+        if (reply.toString().equals("OK"))
+        {
+          compressed = true;
+          inflater = new Compressor.Input();
+        }
+        
+        compressed();
       }
+      
+      ByteBuffer plain = compressed ? inflater.inflate(raw) : raw;
+      
+      // Through the framer, as much as its buffer takes at a time.
+      while (plain.hasRemaining())
+      {
+        ByteBuffer target = framer.target(shared);
+        int n = Math.min(target.remaining(), plain.remaining());
+        
+        target.put(target.position(), plain, plain.position(), n);
+        target.position(target.position() + n);
+        plain.position(plain.position() + n);
+        
+        framer.frame(target, this);
+      }
+      
+    }
+    
+    @Override
+    public void line(ByteBuffer buf, int start, int end) throws IOException
+    {
+      
+      String message = string(buf, start, end);
+      
+      // The reply to /binary, frames follow if it's OK.
+      if (state == BINARY)
+      {
+        framed = message.equals("OK\n");
+        
+        if (framed)
+        {
+          framer.binary();
+        }
+        
+        ready();
+        return;
+      }
+      
+      // Keepalive from the server, answered without bothering the user.
+      if (message.equals("PING\n"))
+      {
+        write("/pong");
+        return;
+      }
+      
+      show(message);
+      
+    }
+    
+    @Override
+    public void frame(ByteBuffer buf, int start, int end) throws IOException
+    {
+      
+      // Keepalive from the server, answered without bothering the user.
+      if ((buf.get(start) & 0xFF) == BinaryProtocol.PING)
+      {
+        write("/pong");
+        return;
+      }
+      
+      show(BinaryProtocol.text(buf, start, end));
+      
+    }
+    
+    @Override
+    public void overflow()
+    {
+      show("(line too long, dropped)\n");
+    }
+    
+    // Add what the user typed to what's to be written, as a frame or a line.
+    private void write(String message) throws IOException
+    {
+      
+      if (message.startsWith("/nick "))
+      {
+        nick = message;
+      }
+      
+      else if (message.startsWith("/join "))
+      {
+        room = message;
+      }
+      
+      else if (message.trim().equals("/leave"))
+      {
+        room = null;
+      }
+      
+      byte[] bytes = framed ? toFrame(message) : (message+"\n").getBytes(charset);
+      
+      if (out.remaining() < bytes.length)
+      {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+        
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+      }
+      
+      out.put(bytes);
+      
+    }
+    
+    // Write as much as the socket takes, and wait for it to take the rest.
+    private void flush() throws IOException
+    {
+      
+      if (out.position() > 0 && key.isValid() && state != CONNECTING)
+      {
+        out.flip();
+        channel.write(out);
+        out.compact();
+      }
+      
+      if (key.isValid())
+      {
+        key.interestOps(state == CONNECTING ? SelectionKey.OP_CONNECT : out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      }
+      
+    }
+    
+    private void close()
+    {
+      
+      try
+      {
+        if (channel != null)
+        {
+          channel.close();
+        }
+        
+        // Let the selector forget the cancelled key before the next connection registers.
+        selector.selectNow();
+      }
+      
       catch (IOException e)
       {
-        e.printStackTrace();
       }
+      
+      if (framer != null)
+      {
+        framer.release();
+      }
+      
     }
+    
+  }
+  
+  private static String string(ByteBuffer buf, int start, int end)
+  {
+    
+    byte[] bytes = new byte[end - start];
+    buf.get(start, bytes);
+    
+    return new String(bytes, charset);
+    
   }
   
   // Instancia o ChatClient e arranca-o invocando o seu mÃ©todo run()
@@ -145,5 +664,5 @@ public class ChatClient
     ChatClient client = new ChatClient(args[0], Integer.parseInt(args[1]));
     client.run();
   }
-
-}
+  
+}
\ No newline at end of file
@@ -0,0 +1,802 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Headless load generator for ChatServer. It opens many simulated users from one JVM over NIO, has each of them pick
+// a nickname and join a room, and then sends chat lines and private messages at a fixed rate. Every line carries the
+// time it was sent, so whoever receives it can tell how long the delivery took. Run with:
+//
+//   java -Dload.users=10000 -Dload.rooms=100 -Dload.rate=2000 ChatLoad 127.0.0.1 8000
+//
+// Options are system properties:
+//
+//   load.users        simulated users (1000)
+//   load.rooms        rooms they are spread over (10)
+//   load.rate         lines sent per second by all users together (1000)
+//   load.priv         fraction of those lines that are /priv to a random user (0.1)
+//   load.size         bytes of text per line (64)
+//   load.duration     seconds of traffic once every user is in a room (30)
+//   load.connectRate  new connections per second while ramping up (2000)
+//   load.threads      event loops the users are spread over (number of cores)
+//   load.binary       true to have the users switch to the binary protocol first (false)
+//   load.bigRoom      users that join one big room instead, taken from the first ones (0)
+//   load.bigRate      lines sent per second to the big room, on top of load.rate (10)
+//
+// With a big room the latency of everything else is reported on its own, which is what a room too big to fan out
+// inline shows up in: the other rooms of its event loop wait while it does.
+public class ChatLoad
+{
+  
+  static private final int users = Integer.getInteger("load.users", 1000);
+  static private final int rooms = Integer.getInteger("load.rooms", 10);
+  static private final int rate = Integer.getInteger("load.rate", 1000);
+  static private final double priv = Double.parseDouble(System.getProperty("load.priv", "0.1"));
+  static private final int size = Integer.getInteger("load.size", 64);
+  static private final int duration = Integer.getInteger("load.duration", 30);
+  static private final int connectRate = Integer.getInteger("load.connectRate", 2000);
+  static private final int threads = Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors());
+  static private final boolean binary = Boolean.getBoolean("load.binary");
+  static private final int bigRoom = Math.min(users, Integer.getInteger("load.bigRoom", 0));
+  static private final int bigRate = Integer.getInteger("load.bigRate", 10);
+  
+  static private final Charset charset = StandardCharsets.UTF_8;
+  
+  // For the framers' carry buffers.
+  static private final BufferPool pool = new BufferPool(16 << 20);
+  
+  // Users that got their OK for /join.
+  static private final AtomicInteger ready = new AtomicInteger();
+  
+  // Set by main once everyone is in, traffic is sent until it clears it.
+  static private volatile boolean sending = false;
+  static private volatile boolean running = true;
+  
+  static private final int CONNECTING = 0;
+  static private final int NICK = 1;
+  static private final int JOIN = 2;
+  static private final int READY = 3;
+  static private final int BINARY = 4;
+  
+  static private class User
+  {
+    
+    public int id;
+    public int state;
+    
+    public SocketChannel channel;
+    public SelectionKey key;
+    
+    public LineFramer framer;
+    
+    // Line being written, when the socket didn't take all of it. The user sends nothing else until it's gone.
+    public ByteBuffer out;
+    
+    public User(int id)
+    {
+      this.id = id;
+      this.state = CONNECTING;
+      this.framer = new LineFramer(65536, pool);
+      this.out = ByteBuffer.allocate(size + 64);
+      this.out.flip();
+    }
+    
+  }
+  
+  // Latency histogram, log-linear buckets with 32 steps per power of two (about 3% precision) so recording is an
+  // array increment and any range of values fits in a couple of thousand longs.
+  static private class Histogram
+  {
+    
+    public long[] counts = new long[64 * 32];
+    public long total;
+    public long max;
+    
+    public void record(long ns)
+    {
+      
+      counts[index(Math.max(0, ns))]++;
+      total++;
+      max = Math.max(max, ns);
+      
+    }
+    
+    public void add(Histogram h)
+    {
+      
+      for (int i = 0; i < counts.length; i++)
+      {
+        counts[i] += h.counts[i];
+      }
+      
+      total += h.total;
+      max = Math.max(max, h.max);
+      
+    }
+    
+    // Smallest recorded value that at least p of all values are under, to the bucket's precision.
+    public long percentile(double p)
+    {
+      
+      long want = (long)Math.ceil(p * total);
+      long seen = 0;
+      
+      for (int i = 0; i < counts.length; i++)
+      {
+        seen += counts[i];
+        
+        if (seen >= want && seen > 0)
+        {
+          return Math.min(value(i + 1) - 1, max);
+        }
+      }
+      
+      return max;
+      
+    }
+    
+    static private int index(long v)
+    {
+      
+      if (v < 64)
+      {
+        return (int)v;
+      }
+      
+      int shift = 63 - Long.numberOfLeadingZeros(v) - 5;
+      
+      return shift * 32 + (int)(v >>> shift);
+      
+    }
+    
+    static private long value(int i)
+    {
+      
+      if (i < 64)
+      {
+        return i;
+      }
+      
+      return ((i & 31) + 32L) << ((i >> 5) - 1);
+      
+    }
+    
+  }
+  
+  // One selector and one thread driving a share of the users.
+  static private class Worker implements Runnable, LineFramer.Handler
+  {
+    
+    private final Selector selector;
+    private final InetSocketAddress server;
+    
+    private final ArrayList<User> mine = new ArrayList<>();
+    
+    // Those of mine in the big room, and the others.
+    private final ArrayList<User> big = new ArrayList<>();
+    private final ArrayList<User> regular = new ArrayList<>();
+    
+    private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+    
+    private final Histogram latency = new Histogram();
+    private final Histogram bigLatency = new Histogram();
+    private final Random random = new Random();
+    
+    private User reading;
+    
+    // Read by main for the progress lines.
+    public volatile long sent;
+    public volatile long delivered;
+    public volatile long errors;
+    
+    public Worker(InetSocketAddress server) throws IOException
+    {
+      this.selector = Selector.open();
+      this.server = server;
+    }
+    
+    public void run()
+    {
+      
+      try
+      {
+        
+        connect();
+        
+        long start = 0;
+        long quota = 0;
+        long bigQuota = 0;
+        
+        // This worker's share of the rates.
+        double perNano = (double)rate / threads / 1e9;
+        double bigPerNano = (double)bigRate / threads / 1e9;
+        
+        while (running)
+        {
+          
+          selector.select(1);
+          
+          for (SelectionKey key : selector.selectedKeys())
+          {
+            handle(key);
+          }
+          
+          selector.selectedKeys().clear();
+          
+          if (!sending)
+          {
+            start = 0;
+            continue;
+          }
+          
+          long now = System.nanoTime();
+          
+          if (start == 0)
+          {
+            start = now;
+            quota = 0;
+            bigQuota = 0;
+          }
+          
+          // Send whatever is due by now, never more than a second's worth in one go.
+          long due = (long)((now - start) * perNano) - quota;
+          
+          for (long i = Math.min(due, rate); i > 0; i--)
+          {
+            send(regular, now);
+            quota++;
+          }
+          
+          due = (long)((now - start) * bigPerNano) - bigQuota;
+          
+          for (long i = Math.min(due, bigRate); i > 0; i--)
+          {
+            send(big, now);
+            bigQuota++;
+          }
+        }
+        
+        for (User u : mine)
+        {
+          u.channel.close();
+        }
+        
+        selector.close();
+        
+      }
+      
+      catch( IOException ie )
+      {
+        System.err.println( ie );
+      }
+      
+    }
+    
+    // Open this worker's connections, at its share of load.connectRate.
+    private void connect() throws IOException
+    {
+      
+      long pause = 1000000000L * threads / Math.max(1, connectRate);
+      long next = System.nanoTime();
+      
+      for (User u : mine)
+      {
+        
+        while (System.nanoTime() < next)
+        {
+          selector.select(1);
+          
+          for (SelectionKey key : selector.selectedKeys())
+          {
+            handle(key);
+          }
+          
+          selector.selectedKeys().clear();
+        }
+        
+        next += pause;
+        
+        u.channel = SocketChannel.open();
+        u.channel.configureBlocking(false);
+        u.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        u.channel.connect(server);
+        
+        u.key = u.channel.register(selector, SelectionKey.OP_CONNECT, u);
+      }
+      
+    }
+    
+    private void handle(SelectionKey key) throws IOException
+    {
+      
+      User u = (User)key.attachment();
+      
+      try
+      {
+        
+        if (key.isConnectable())
+        {
+          u.channel.finishConnect();
+          key.interestOps(SelectionKey.OP_READ);
+          
+          if (binary)
+          {
+            u.state = BINARY;
+            write(u, "/binary\n");
+          }
+          
+          else
+          {
+            u.state = NICK;
+            write(u, "/nick u"+u.id+"\n");
+          }
+          
+          return;
+        }
+        
+        if (key.isReadable())
+        {
+          ByteBuffer target = u.framer.target(buffer);
+          
+          if (u.channel.read(target) < 0)
+          {
+            System.err.println( "Server closed u"+u.id );
+            key.cancel();
+            return;
+          }
+          
+          reading = u;
+          u.framer.frame(target, this);
+        }
+        
+        if (key.isValid() && key.isWritable())
+        {
+          flush(u);
+        }
+        
+      }
+      
+      catch( IOException ie )
+      {
+        System.err.println( "u"+u.id+": "+ie );
+        key.cancel();
+      }
+      
+    }
+    
+    // A line from the server for the user being read.
+    public void line(ByteBuffer buf, int start, int end) throws IOException
+    {
+      
+      User u = reading;
+      
+      switch (buf.get(start))
+      {
+        case 'M':
+        case 'P':
+          
+          // PING is answered, unless the user is in the middle of sending something, which does as well.
+          if (buf.get(start + 1) == 'I')
+          {
+            if (!u.out.hasRemaining())
+            {
+              write(u, "/pong\n");
+            }
+            
+            break;
+          }
+          
+          // MESSAGE nick t<nanos> ... or PRIVATE nick t<nanos> ..., the time is the third field.
+          delivered(u, buf, field(buf, start, end, 2), end);
+          
+          break;
+        
+        case 'O':
+          
+          ok(u);
+          break;
+        
+        case 'E':
+          
+          errors++;
+          break;
+        
+        default:
+          
+          // JOINED, LEFT, NEWNICK, BYE
+          break;
+      }
+      
+    }
+    
+    public void overflow()
+    {
+      errors++;
+    }
+    
+    // A frame from the server for the user being read, once it switched to binary.
+    public void frame(ByteBuffer buf, int start, int end) throws IOException
+    {
+      
+      User u = reading;
+      
+      switch (buf.get(start) & 0xFF)
+      {
+        case BinaryProtocol.PING:
+          
+          if (!u.out.hasRemaining())
+          {
+            write(u, BinaryProtocol.PONG, "");
+          }
+          
+          break;
+        
+        case BinaryProtocol.MESSAGE_FROM:
+        case BinaryProtocol.PRIVATE_FROM:
+          
+          delivered(u, buf, BinaryProtocol.body(buf, start), end);
+          break;
+        
+        case BinaryProtocol.OK:
+          
+          ok(u);
+          break;
+        
+        case BinaryProtocol.ERROR:
+          
+          errors++;
+          break;
+        
+        default:
+          
+          // JOINED, LEFT, NEWNICK, BYE
+          break;
+      }
+      
+    }
+    
+    // Record the latency of a line whose text, starting at i, is timestamped. Lines that come before the user is in,
+    // like the room's history, weren't sent during the run.
+    private void delivered(User u, ByteBuffer buf, int i, int end)
+    {
+      
+      if (u.state == READY && i < end && buf.get(i) == 't')
+      {
+        (u.id < bigRoom ? bigLatency : latency).record(System.nanoTime() - number(buf, i + 1, end));
+        delivered++;
+      }
+      
+    }
+    
+    // The answer to the user's last command, on to the next step of getting in.
+    private void ok(User u) throws IOException
+    {
+      
+      if (u.state == BINARY)
+      {
+        u.framer.binary();
+        u.state = NICK;
+        write(u, BinaryProtocol.NICK, "u"+u.id);
+      }
+      
+      else if (u.state == NICK)
+      {
+        u.state = JOIN;
+        
+        String room = u.id < bigRoom ? "big" : "r"+(u.id % rooms);
+        
+        if (binary)
+        {
+          write(u, BinaryProtocol.JOIN, room);
+        }
+        
+        else
+        {
+          write(u, "/join "+room+"\n");
+        }
+      }
+      
+      else if (u.state == JOIN)
+      {
+        u.state = READY;
+        ready.incrementAndGet();
+      }
+      
+    }
+    
+    // Send one timestamped chat line or /priv from a random one of these users of this worker.
+    private void send(ArrayList<User> senders, long now) throws IOException
+    {
+      
+      if (senders.isEmpty())
+      {
+        return;
+      }
+      
+      User u = senders.get(random.nextInt(senders.size()));
+      
+      // Still busy with its last line, or not in a room yet.
+      if (u.state != READY || u.out.hasRemaining())
+      {
+        return;
+      }
+      
+      ByteBuffer out = u.out;
+      out.clear();
+      
+      boolean toUser = random.nextDouble() < priv;
+      
+      // A frame's length goes in once the rest is there.
+      if (binary)
+      {
+        out.putShort((short)0);
+        out.put((byte)(toUser ? BinaryProtocol.PRIV : BinaryProtocol.MESSAGE));
+      }
+      
+      int from = out.position();
+      
+      if (toUser && binary)
+      {
+        int at = out.position();
+        
+        out.putShort((short)0);
+        out.put((byte)'u');
+        number(out, random.nextInt(users));
+        out.putShort(at, (short)(out.position() - at - 2));
+      }
+      
+      else if (toUser)
+      {
+        put(out, "/priv u");
+        number(out, random.nextInt(users));
+        out.put((byte)' ');
+      }
+      
+      out.put((byte)'t');
+      number(out, now);
+      out.put((byte)' ');
+      
+      while (out.position() - from < size + 16)
+      {
+        out.put((byte)'x');
+      }
+      
+      if (binary)
+      {
+        out.putShort(0, (short)(out.position() - 2));
+      }
+      
+      else
+      {
+        out.put((byte)'\n');
+      }
+      
+      out.flip();
+      
+      sent++;
+      flush(u);
+      
+    }
+    
+    private void write(User u, String line) throws IOException
+    {
+      
+      u.out.clear();
+      u.out.put(line.getBytes(charset));
+      u.out.flip();
+      
+      flush(u);
+      
+    }
+    
+    // A frame with opcode op and the given text as its body.
+    private void write(User u, int op, String text) throws IOException
+    {
+      
+      u.out.clear();
+      u.out.put(BinaryProtocol.frame(op, text.getBytes(charset)));
+      u.out.flip();
+      
+      flush(u);
+      
+    }
+    
+    private void flush(User u) throws IOException
+    {
+      
+      u.channel.write(u.out);
+      
+      u.key.interestOps(u.out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      
+    }
+    
+  }
+  
+  // Where the n-th space separated field of the line starts.
+  static private int field(ByteBuffer buf, int start, int end, int n)
+  {
+    
+    int i = start;
+    
+    while (n > 0 && i < end)
+    {
+      if (buf.get(i++) == ' ')
+      {
+        n--;
+      }
+    }
+    
+    return i;
+    
+  }
+  
+  static private long number(ByteBuffer buf, int i, int end)
+  {
+    
+    long v = 0;
+    
+    for (; i < end; i++)
+    {
+      byte b = buf.get(i);
+      
+      if (b < '0' || b > '9')
+      {
+        break;
+      }
+      
+      v = v * 10 + (b - '0');
+    }
+    
+    return v;
+    
+  }
+  
+  static private void number(ByteBuffer out, long v)
+  {
+    
+    if (v >= 10)
+    {
+      number(out, v / 10);
+    }
+    
+    out.put((byte)('0' + v % 10));
+    
+  }
+  
+  static private void put(ByteBuffer out, String s)
+  {
+    
+    for (int i = 0; i < s.length(); i++)
+    {
+      out.put((byte)s.charAt(i));
+    }
+    
+  }
+  
+  static public void main( String args[] ) throws Exception
+  {
+    
+    String host = args.length > 0 ? args[0] : "127.0.0.1";
+    int port = args.length > 1 ? Integer.parseInt( args[1] ) : 8000;
+    
+    InetSocketAddress server = new InetSocketAddress( host, port );
+    
+    Worker[] workers = new Worker[threads];
+    
+    for (int i = 0; i < threads; i++)
+    {
+      workers[i] = new Worker(server);
+    }
+    
+    for (int i = 0; i < users; i++)
+    {
+      User u = new User(i);
+      Worker w = workers[i % threads];
+      
+      w.mine.add(u);
+      (i < bigRoom ? w.big : w.regular).add(u);
+    }
+    
+    System.out.println( "Connecting "+users+" users to "+server+" over "+rooms+" rooms" );
+    
+    Thread[] running = new Thread[threads];
+    
+    for (int i = 0; i < threads; i++)
+    {
+      running[i] = new Thread(workers[i], "load-"+i);
+      running[i].start();
+    }
+    
+    // Wait for everyone to be in a room, or for the ramp up to stall.
+    int last = -1;
+    long stalled = System.nanoTime();
+    
+    while (ready.get() < users)
+    {
+      Thread.sleep(1000);
+      
+      int now = ready.get();
+      
+      System.out.println( "ready "+now+"/"+users );
+      
+      if (now != last)
+      {
+        last = now;
+        stalled = System.nanoTime();
+      }
+      
+      else if (System.nanoTime() - stalled > 10000000000L)
+      {
+        System.out.println( "Ramp up stalled, sending with "+now+" users" );
+        break;
+      }
+    }
+    
+    System.out.println( "Sending "+rate+" lines/s for "+duration+"s" );
+    
+    sending = true;
+    
+    long sent = 0, delivered = 0;
+    
+    for (int s = 1; s <= duration; s++)
+    {
+      Thread.sleep(1000);
+      
+      long nowSent = 0, nowDelivered = 0, errors = 0;
+      
+      for (Worker w : workers)
+      {
+        nowSent += w.sent;
+        nowDelivered += w.delivered;
+        errors += w.errors;
+      }
+      
+      System.out.println( String.format( "%4ds  sent %8d/s  delivered %10d/s  errors %d", s, nowSent - sent, nowDelivered - delivered, errors ) );
+      
+      sent = nowSent;
+      delivered = nowDelivered;
+    }
+    
+    sending = false;
+    
+    // Give the lines still on their way a moment to arrive.
+    Thread.sleep(2000);
+    
+    ChatLoad.running = false;
+    
+    for (Thread t : running)
+    {
+      t.join();
+    }
+    
+    Histogram all = new Histogram();
+    Histogram allBig = new Histogram();
+    long errors = 0;
+    
+    sent = 0;
+    delivered = 0;
+    
+    for (Worker w : workers)
+    {
+      all.add(w.latency);
+      allBig.add(w.bigLatency);
+      sent += w.sent;
+      delivered += w.delivered;
+      errors += w.errors;
+    }
+    
+    System.out.println();
+    System.out.println( String.format( "sent %d (%.0f/s), delivered %d (%.0f/s), errors %d", sent, (double)sent / duration, delivered, (double)delivered / duration, errors ) );
+    System.out.println( String.format( "latency p50 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms", all.percentile(0.5) / 1e6, all.percentile(0.99) / 1e6, all.percentile(0.999) / 1e6, all.max / 1e6 ) );
+    
+    if (bigRoom > 0)
+    {
+      System.out.println( String.format( "big room %d members, latency p50 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms", bigRoom, allBig.percentile(0.5) / 1e6, allBig.percentile(0.99) / 1e6, allBig.percentile(0.999) / 1e6, allBig.max / 1e6 ) );
+    }
+    
+  }
+  
+}
@@ -3,614 +3,4391 @@ import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
 
 public class ChatServer
 {
-  // A pre-allocated buffer for the received data
-  static private final ByteBuffer buffer = ByteBuffer.allocate( 16384 );
-  
-  // Decoder for incoming text -- assume UTF-8
+  // Charset for all the text on the wire -- assume UTF-8
   static private final Charset charset = Charset.forName("UTF8");
-  static private final CharsetDecoder decoder = charset.newDecoder();
   
   // Private class for Client, providing Constructor for Client and default values;
   static private class Client
   {
     
+    // Given out in order of connection, so binary clients can address each other by number.
+    public final int id;
+    
+    // The fan-out lane its share of a big room's traffic is queued by, see Broadcast.
+    public final int lane;
+    
     public boolean init;
     public boolean inside;
     
-    public String nick;
-    public String room;
+    // Read by other event loops when they look for a nickname, so it has to be visible across threads.
+    public volatile String nick;
+    
+    // The room it's in, null if none. Set by whoever serves the client, and read by the room's owner, which doesn't
+    // deliver to members that have already moved on.
+    public volatile Room room;
+    
+    // Splits what the client sends into lines, holding on to a partial one between reads.
+    public LineFramer framer;
+    
+    // "MESSAGE nick " and "PRIVATE nick " already encoded, so a chat line can be forwarded without decoding it.
+    public byte[] messagePrefix;
+    public byte[] privatePrefix;
+    
+    // Set by /binary, everything to and from the client is binary frames from then on. It can only be sent before
+    // the nickname, so whoever encodes for the client already sees it set. The frames' opcode, id and nickname
+    // encoded like the prefixes are.
+    public volatile boolean binary;
+    public byte[] messageFrame;
+    public byte[] privateFrame;
+    
+    // Set by /compress, everything sent to the client from then on is compressed. Like /binary it comes before the
+    // nickname, so nothing queued for the client before it can follow it.
+    public volatile boolean compressing;
+    
+    // The id of the last segment of its room's stream queued for the client, only touched holding the client's lock.
+    // broken is set when part of that stream was dropped from its queue, so take() skips the rest until it starts
+    // afresh.
+    public long lastSegment;
+    public volatile boolean broken;
+    
+    public SocketChannel channel;
+    public SelectionKey key;
+    
+    // The event loop that owns this client's SocketChannel, only its thread reads, writes or closes it. Null when
+    // the client is served by a thread of its own, whose writer thread then sends everything queued for it.
+    public EventLoop loop;
+    public Thread writer;
+    
+    // Where what happens on this connection is counted, its loop's metrics or those of the thread engine.
+    public Metrics metrics;
+    
+    // Outbound data that the SocketChannel hasn't taken yet, oldest first: room traffic in out, which other loops add
+    // to when fanning out, and replies to the client's own commands in ctl, which go out first. Whoever writes takes
+    // buffers off these queues, a write that only went part of the way leaves the rest in unsent, ahead of both, with
+    // how much of the first one went out already. The queues hold a reference to every buffer in them.
+    public ConcurrentLinkedQueue<BufferPool.Buffer> out;
+    public ConcurrentLinkedQueue<BufferPool.Buffer> ctl;
+    public ArrayDeque<BufferPool.Buffer> unsent;
+    public int offset;
+    
+    // Bytes in out and ctl, what the outbound budget is checked against.
+    public AtomicLong queued;
+    
+    // Set once the client fell too far behind, it is then disconnected by whoever serves it.
+    public AtomicBoolean evicted;
+    
+    // True while OP_WRITE is registered, i.e. the selector will drain the queue when the socket is writable.
+    public boolean writing;
     
-    public StringBuffer buffer;
+    // True while the client is waiting in its loop's flush queue, so another loop doesn't add it twice. With a thread
+    // per connection, true while its writer has been woken up and hasn't looked at the queue yet.
+    public AtomicBoolean flushQueued;
     
-    public Client()
+    // Set by /bye, the connection is closed as soon as the outbound queue is drained. Volatile for the writer
+    // thread of the thread per connection engine.
+    public volatile boolean closing;
+    
+    // When the connection was accepted and last sent something, by System.nanoTime(), and whether it has been sent a
+    // PING since. Its timer goes off at the next of the deadlines these make, see EventLoop.expired().
+    public long connected;
+    public long lastRead;
+    public boolean pinged;
+    public TimerWheel.Timer timer;
+    
+    // True while the client is in its loop's list of connections to flush at the end of the tick, and how many bytes
+    // its own loop queued for it since the last flush. Only touched by the owning loop.
+    public boolean batched;
+    public int batchedBytes;
+    
+    // Its flood control budgets, null where there's no limit, see chat.floodMessages. paused is set once it went over
+    // one with chat.floodPolicy "pause", it isn't read from again until resume, by System.nanoTime(). Only touched by
+    // whoever reads from the client.
+    public final TokenBucket messageBudget;
+    public final TokenBucket byteBudget;
+    public final TokenBucket commandBudget;
+    public boolean paused;
+    public long resume;
+    
+    // A /nick waiting for the node that owns the nickname, see changeNick(). The answer, the nickname, and until when
+    // it's waited for, by System.nanoTime(). Only touched by the client's loop.
+    public CompletableFuture<Integer> claim;
+    public String claiming;
+    public long claimEnd;
+    
+    public Client(SocketChannel channel, SelectionKey key, EventLoop loop)
     {
+      this.id = newId();
+      this.lane = nextLane.getAndIncrement() & Integer.MAX_VALUE;
       this.init = true;
       this.inside = false;
       
       this.nick = "";
-      this.room = "";
+      this.room = null;
+      
+      this.framer = new LineFramer(maxLine, pool);
+      this.messagePrefix = null;
+      this.privatePrefix = null;
+      this.binary = false;
+      this.messageFrame = null;
+      this.privateFrame = null;
+      this.compressing = false;
+      this.lastSegment = 0;
+      this.broken = false;
+      
+      this.channel = channel;
+      this.key = key;
+      this.loop = loop;
+      this.writer = null;
+      
+      this.metrics = loop != null ? loop.metrics : threadMetrics;
       
-      this.buffer = new StringBuffer();
+      this.out = new ConcurrentLinkedQueue<>();
+      this.ctl = new ConcurrentLinkedQueue<>();
+      this.unsent = loop != null ? new ArrayDeque<>() : null;
+      this.offset = 0;
+      this.queued = new AtomicLong();
+      this.evicted = new AtomicBoolean(false);
+      this.writing = false;
+      this.flushQueued = new AtomicBoolean(false);
+      this.closing = false;
+      
+      this.batched = false;
+      this.batchedBytes = 0;
+      
+      this.connected = System.nanoTime();
+      this.lastRead = this.connected;
+      this.pinged = false;
+      this.timer = new TimerWheel.Timer(this);
+      
+      this.messageBudget = floodMessages > 0 ? new TokenBucket(floodMessages, floodMessages) : null;
+      this.byteBudget = floodBytes > 0 ? new TokenBucket(floodBytes, Math.max(floodBytes, maxLine)) : null;
+      this.commandBudget = floodCommands > 0 ? new TokenBucket(floodCommands, floodCommands) : null;
+      this.paused = false;
+      this.claim = null;
+      this.claiming = null;
+    }
+    
+    // False once the connection is closed, or being closed, by its engine.
+    public boolean open()
+    {
+      return key != null ? key.isValid() : channel.isOpen();
+    }
+    
+    // Paused, or waiting for a claim, so not read from.
+    public boolean held()
+    {
+      return paused || claim != null;
     }
     
   }
   
-  // HashMap that will contain all connected Client objects at a given point in time.
-  static private final HashMap<SocketChannel, Client> clients = new HashMap<>();
+  // Longest line a client may send, LF included. Longer lines are answered with ERROR and dropped.
+  static private final int maxLine = Integer.getInteger("chat.maxLine", 16384);
   
-  // HashMap with String keys for the different chat rooms and their 'online' SocketChannels.
-  static private final HashMap<String, ArrayList<SocketChannel>> chatRooms = new HashMap<>();
+  // Map that will contain all connected Client objects at a given point in time, shared by every event loop.
+  static private final ConcurrentHashMap<SocketChannel, Client> clients = new ConcurrentHashMap<>();
   
-  static private Scanner cmdScanner;
+  // Open connections, counted in when admitted and out when forgotten. Unlike clients it includes those an acceptor
+  // handed to a loop that hasn't registered them yet.
+  static private final AtomicInteger connections = new AtomicInteger();
   
-  static public void main( String args[] ) throws Exception
+  // Most connections open at once, and most new ones a second, with up to a second's worth at once. 0 for no limit.
+  // Those turned away get ERROR and are closed, and count as rejected.
+  static private final int maxConnections = Integer.getInteger("chat.maxConnections", 0);
+  static private final int acceptRate = Integer.getInteger("chat.acceptRate", 0);
+  
+  static private final TokenBucket admissions = acceptRate > 0 ? new TokenBucket(acceptRate, acceptRate) : null;
+  
+  // Flood control. Chat lines and private messages a client may send a second, bytes of input a second, and other
+  // commands a second, /bye and /pong aside, each with up to a second's worth at once. And chat lines a room takes a
+  // second from all its members on this node. 0 for no limit. Over a budget, "error" answers the input with ERROR and
+  // drops it, "pause" handles it but stops reading from the client until it's back within budget.
+  static private final int floodMessages = Integer.getInteger("chat.floodMessages", 0);
+  static private final int floodBytes = Integer.getInteger("chat.floodBytes", 0);
+  static private final int floodCommands = Integer.getInteger("chat.floodCommands", 0);
+  static private final int floodRoom = Integer.getInteger("chat.floodRoom", 0);
+  static private final boolean floodPause = System.getProperty("chat.floodPolicy", "error").equals("pause");
+  
+  // Connections the kernel holds for each listening socket until they are accepted, and how many listening sockets
+  // share the port through SO_REUSEPORT, each with an acceptor of its own that the kernel spreads connections over.
+  static private final int backlog = Integer.getInteger("chat.backlog", 4096);
+  static private final int listeners = Integer.getInteger("chat.listeners", 1);
+  
+  // The loop the next connection an acceptor takes goes to.
+  static private final AtomicInteger nextLoop = new AtomicInteger();
+  
+  // A chat room and its 'online' Clients. A LinkedHashSet adds and removes in constant time and iterates only over
+  // its members. Everything in a Room is only touched by its owner's thread, or holding the Room's lock with the
+  // thread engine, see run(Room, Runnable).
+  static private class Room
   {
     
-    // Parse port from command line
-    int port = Integer.parseInt( args[0] );
+    public final String name;
+    public final LinkedHashSet<Client> users;
     
-    try
+    // The event loop that runs everything done to the room, null with the thread engine. Only the owner moves it to
+    // another loop, and only while the room isn't scheduled.
+    public volatile EventLoop owner;
+    
+    // What other threads handed over for the owner to run, oldest first, and how many of those are chat lines, which
+    // are turned away past chat.roomQueue. Joins, leaves and notices always get in.
+    public final ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    public final AtomicInteger lines = new AtomicInteger();
+    
+    // True while the room waits in its owner's run queue or is being run, so one thread at a time runs its inbox.
+    public final AtomicBoolean scheduled = new AtomicBoolean(false);
+    
+    // Members plus joiners not run yet, -1 once the room is gone. Whoever takes it to -1 removes it from chatRooms.
+    public final AtomicInteger refs = new AtomicInteger();
+    
+    // Time its owner spent running it during the owner's period (see EventLoop.rebalance()).
+    public long busy;
+    public long period;
+    
+    // Chat lines sent to the room, and how long queueing them for everyone took in total.
+    public long messages;
+    public long fanOutNanos;
+    
+    // The room's last lines, null if history is off. It outlives the Room, which goes away when empty.
+    public final History history;
+    
+    // For the members that compress, a deflate stream per protocol (text, then binary) that every chat line goes
+    // through once, made when first needed. The ids of each stream's last segment and of the one before it, 0 when
+    // the next starts it afresh. restart has both start afresh with the next line, for a joiner or for a member
+    // that missed part of them.
+    public final Deflater[] streams = new Deflater[2];
+    public final long[] last = new long[2];
+    public final long[] previous = new long[2];
+    public volatile boolean restart;
+    
+    // Past chat.fanOutParallel members, the members split by lane, remade after changed is set by a join or a leave,
+    // and whether any of them speak each protocol and compress it. fanning counts lines and notices the lanes haven't
+    // finished with, while there are any everything for the room goes through the lanes, so nothing overtakes them.
+    public Client[][] chunks;
+    public boolean changed = true;
+    public final boolean[] speaks = new boolean[2];
+    public final boolean[] compress = new boolean[2];
+    public final AtomicInteger fanning = new AtomicInteger();
+    
+    // Chat lines it takes from its members, see chat.floodRoom, null for no limit. Shared by whoever reads from them,
+    // so spent holding its lock.
+    public final TokenBucket lineBudget;
+    
+    public Room(String name, EventLoop owner)
     {
-      // Instead of creating a ServerSocket, create a ServerSocketChannel
-      ServerSocketChannel ssc = ServerSocketChannel.open();
+      this.name = name;
+      this.users = new LinkedHashSet<>();
+      this.owner = owner;
+      this.lineBudget = floodRoom > 0 ? new TokenBucket(floodRoom, floodRoom) : null;
+      this.history = historyLines > 0 ? History.take(name) : null;
+    }
+    
+    // Count in a joiner. False if the room is gone already, and a new one has to take its place.
+    public boolean enter()
+    {
+      
+      int n;
       
-      // Set it to non-blocking, so we can use select
-      ssc.configureBlocking( false );
+      while ((n = refs.get()) >= 0)
+      {
+        if (refs.compareAndSet(n, n + 1))
+        {
+          return true;
+        }
+      }
       
-      // Get the Socket connected to this channel, and bind it to the
-      // listening port
-      ServerSocket ss = ssc.socket();
-      InetSocketAddress isa = new InetSocketAddress( port );
-      ss.bind( isa );
+      return false;
       
-      // Create a new Selector for selecting
-      Selector selector = Selector.open();
+    }
+    
+    // Count out a member that left. True if it was the last, the room is then gone.
+    public boolean exit()
+    {
+      return refs.decrementAndGet() == 0 && refs.compareAndSet(0, -1);
+    }
+    
+    // Let go of the streams' native memory, once the room is gone.
+    public void close()
+    {
+      for (int i = 0; i < streams.length; i++)
+      {
+        if (streams[i] != null)
+        {
+          streams[i].end();
+          streams[i] = null;
+        }
+      }
       
-      // Register the ServerSocketChannel, so we can listen for incoming
-      // connections
-      ssc.register( selector, SelectionKey.OP_ACCEPT );
-      System.out.println( "Listening on port "+port );
+      if (history != null)
+      {
+        History.giveBack(name, history);
+      }
+    }
+    
+  }
+  
+  // The last chat lines sent to a room, as the encoded MESSAGE lines that went out. A joiner gets the very same
+  // buffers queued, so replaying history costs no copying and never touches the disk. Binary joiners get frames made
+  // from the lines the first time one is replayed, with id 0 as the sender may be long gone.
+  static private class History
+  {
+    
+    private final BufferPool.Buffer[] lines = new BufferPool.Buffer[historyLines];
+    private final BufferPool.Buffer[] frames = new BufferPool.Buffer[historyLines];
+    
+    // Where the next line goes, and how many there are.
+    private int next;
+    private int count;
+    
+    // Rooms holding it, only touched holding unused. At 0 it waits in unused for the next room of that name.
+    private int rooms;
+    
+    // The history of room name, for a new Room of that name.
+    static public History take(String name)
+    {
       
-      while (true)
+      synchronized (unused)
       {
-        // See if we've had any activity -- either an incoming connection,
-        // or incoming data on an existing connection
-        int num = selector.select();
+        History h = histories.computeIfAbsent(name, k -> new History());
+        
+        unused.remove(name);
+        h.rooms++;
         
-        // If we don't have any activity, loop around and wait again
-        if (num == 0)
+        return h;
+      }
+      
+    }
+    
+    // The Room holding h went away. It's kept for the next room of that name, but only for the historyRooms rooms
+    // that went away last, the others give their lines back.
+    static public void giveBack(String name, History h)
+    {
+      
+      synchronized (unused)
+      {
+        if (--h.rooms == 0)
         {
-          continue;
+          shelve(name, h);
         }
+      }
+      
+    }
+    
+    // Put h at the young end of unused, and drop the oldest beyond historyRooms. Holding unused.
+    static private void shelve(String name, History h)
+    {
+      
+      unused.put(name, h);
+      
+      Iterator<Map.Entry<String, History>> it = unused.entrySet().iterator();
+      
+      while (unused.size() > historyRooms)
+      {
+        Map.Entry<String, History> oldest = it.next();
         
-        // Get the keys corresponding to the activity that has been
-        // detected, and process them one by one
-        Set<SelectionKey> keys = selector.selectedKeys();
-        Iterator<SelectionKey> it = keys.iterator();
+        it.remove();
+        histories.remove(oldest.getKey(), oldest.getValue());
+        oldest.getValue().clear();
+      }
+      
+    }
+    
+    // Give back every line, nobody holds it any more.
+    private synchronized void clear()
+    {
+      
+      for (int i = 0; i < lines.length; i++)
+      {
+        release(lines[i]);
+        release(frames[i]);
+        lines[i] = null;
+        frames[i] = null;
+      }
+      
+      count = 0;
+      
+    }
+    
+    public synchronized void add(BufferPool.Buffer line)
+    {
+      if (lines[next] != null)
+      {
+        lines[next].release();
+      }
+      
+      if (frames[next] != null)
+      {
+        frames[next].release();
+        frames[next] = null;
+      }
+      
+      lines[next] = line.retain();
+      next = (next + 1) % lines.length;
+      count = Math.min(count + 1, lines.length);
+    }
+    
+    // Queue all of it for c, oldest first.
+    public synchronized void replay(Client c)
+    {
+      
+      for (int i = count; i > 0; i--)
+      {
+        int at = (next - i + lines.length) % lines.length;
         
-        while (it.hasNext())
+        if (c.binary && frames[at] == null)
         {
-          // Get a key representing one of bits of I/O activity
-          SelectionKey key = it.next();
-          
-          // What kind of activity is it?
-          if ((key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT)
-          {
-          
-            // It's an incoming connection.  Register this socket with
-            // the Selector so we can listen for input on it
-            Socket s = ss.accept();
-            System.out.println( "Got connection from "+s );
-            
-            // Make sure to make it non-blocking, so we can use a selector
-            // on it.
-            SocketChannel sc = s.getChannel();
-            sc.configureBlocking( false );
-            
-            // Register it with the selector, for reading
-            sc.register( selector, SelectionKey.OP_READ );
-            
-            // Add another object to the HashMap containing the newly connected client.
-            clients.put(sc, new Client());
-            
-          }
-          
-          else if ((key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ)
-          {
-          
-            SocketChannel sc = null;
-            
-            try
-            {
-              
-              // It's incoming data on a connection -- process it
-              sc = (SocketChannel)key.channel();
-              
-              boolean ok = processInput(sc);
-              
-              // If the connection is dead, remove it from the selector
-              // and close it
-              if (!ok)
-              {
-                key.cancel();
-                
-                Socket s = null;
-                
-                try
-                {
-                  s = sc.socket();
-                  
-                  Client c = clients.get(sc);
-                  
-                  if (c.inside)
-                  {
-                    // If the client attached to the SocketChannel was in a chat room, we ought to leave it first.
-                    leaveRoom(sc, c);
-                  }
-                  
-                  // We can now remove the client c, with key SocketChannel sc, from the clients HashMap
-                  clients.remove(sc);
-                  
-                  System.out.println( "Closing connection to "+s );
-                  s.close();
-                }
-                
-                catch( IOException ie )
-                {
-                  System.err.println( "Error closing socket "+s+": "+ie );
-                }
-              }
-              
-            }
-            
-            catch( IOException ie )
-            {
-              
-              // On exception, remove this channel from the selector
-              key.cancel();
-              
-              try
-              {
-                sc.close();
-                clients.remove(sc);
-              }
-              
-              catch( IOException ie2 )
-              {
-                System.out.println( ie2 );
-              }
-              
-              System.out.println( "Closed "+sc );
-            }
-          }
+          frames[at] = frame(lines[at]);
         }
         
-        // We remove the selected keys, because we've dealt with them.
-        keys.clear();
+        enqueue(c, c.binary ? frames[at] : lines[at]);
       }
+      
     }
-    catch( IOException ie )
+    
+    // MESSAGE nick text LF as a MESSAGE_FROM frame.
+    static private BufferPool.Buffer frame(BufferPool.Buffer line)
     {
-      System.err.println( ie );
+      
+      ByteBuffer m = line.memory;
+      
+      int nick = 8;
+      int text = nick;
+      
+      while (m.get(text) != ' ')
+      {
+        text++;
+      }
+      
+      // "MESSAGE ", the space after the nick and the LF make way for the frame's length, opcode, id and nick length.
+      BufferPool.Buffer b = pool.take(line.length() - 1);
+      ByteBuffer f = b.memory;
+      
+      f.putShort((short)(line.length() - 3));
+      f.put((byte)BinaryProtocol.MESSAGE_FROM);
+      f.putInt(0);
+      f.putShort((short)(text - nick));
+      f.put(f.position(), m, nick, text - nick);
+      f.put(f.position() + text - nick, m, text + 1, line.length() - 1 - (text + 1));
+      f.position(f.position() + line.length() - 10);
+      
+      return b.filled();
+      
     }
+    
   }
   
-  // Write to server buffer from the inbound data SocketChannel provides.
-  static private boolean processInput(SocketChannel sc) throws IOException
+  // How many of its last lines a room replays to whoever joins it, 0 to keep no history.
+  static private final int historyLines = Integer.getInteger("chat.history", 20);
+  
+  // History of every room that has members, and of the chat.historyRooms rooms without members that had them last,
+  // by room name. Those of rooms without members are in unused too, the one that went away longest ago first.
+  static private final ConcurrentHashMap<String, History> histories = new ConcurrentHashMap<>();
+  static private final LinkedHashMap<String, History> unused = new LinkedHashMap<>();
+  static private final int historyRooms = Integer.getInteger("chat.historyRooms", 1000);
+  
+  // Directory for the history log, which keeps history over a restart. Without it history is only kept in memory.
+  static private final String historyDir = System.getProperty("chat.historyDir");
+  
+  static private HistoryLog historyLog;
+  
+  // Map with String keys for the different chat rooms. A room is removed from the map by its owner when its last
+  // user leaves.
+  static private final ConcurrentHashMap<String, Room> chatRooms = new ConcurrentHashMap<>();
+  
+  // Most chat lines that may wait for a room's owner to fan them out. Past it the room turns lines away, and the
+  // sender gets ERROR.
+  static private final int roomQueue = Integer.getInteger("chat.roomQueue", 16384);
+  
+  // How many microseconds a second of room work a loop must be ahead of the least busy loop before it hands it a
+  // room, 0 to keep rooms where they were made.
+  static private final long rebalance = Long.getLong("chat.rebalance", 100000) * 1000;
+  
+  // Rooms with at least this many members have their lines and notices queued for the members by the fan-out lanes,
+  // on chat.fanOutThreads threads of their own, instead of by the room's owner, which then only encodes them. 0 keeps
+  // every room inline.
+  static private final int fanOutParallel = Integer.getInteger("chat.fanOutParallel", 5000);
+  
+  static private final int fanOutThreads = Integer.getInteger("chat.fanOutThreads", Runtime.getRuntime().availableProcessors());
+  
+  // Four lanes a thread, so a room's members are cut in chunks small enough to even out between the threads.
+  static private final Lanes lanes = fanOutParallel > 0 ?
+    new Lanes("fanout", fanOutThreads, 4 * fanOutThreads, re -> ChatServer.journal.record(Journal.LANE_ERROR, -1, 0, re)) : null;
+  
+  // Every event loop, for rebalancing rooms between them.
+  static private EventLoop[] loops = new EventLoop[0];
+  
+  // Index of the clients that have a nickname, by nickname. Claiming a nickname is a single putIfAbsent, so it is
+  // unique even when several loops try to take it at once.
+  static private final ConcurrentHashMap<String, Client> nicks = new ConcurrentHashMap<>();
+  
+  // The same clients by id, for binary clients that send private messages by number.
+  static private final ConcurrentHashMap<Integer, Client> ids = new ConcurrentHashMap<>();
+  
+  static private final AtomicInteger nextId = new AtomicInteger(1);
+  
+  // Handed out in turn, so every lane gets about as many members of a room.
+  static private final AtomicInteger nextLane = new AtomicInteger();
+  
+  // The other ChatServers this one shares rooms, nicknames and users with, null when it runs on its own.
+  static private final Cluster cluster = Cluster.fromProperties();
+  
+  // A new user id, unique across the cluster: id % nodes is the node the user is on.
+  static private int newId()
   {
-   
-    //Get buffer ready to be written to.
-    buffer.clear();
     
-    sc.read(buffer);
-    buffer.flip();
+    int n = nextId.getAndIncrement();
     
-    if (buffer.limit() == 0)
-    {
-      return false;
-    }
+    return cluster == null ? n : n * cluster.size() + cluster.self;
+    
+  }
+  
+  // Ids of the segments of rooms' deflate streams, unique across rooms so a member's last one can't be mistaken for
+  // another room's.
+  static private final AtomicLong segmentIds = new AtomicLong();
+  
+  // Outbound data is held for the rest of the select loop iteration and then written with one gathering write per
+  // connection. A connection is flushed early once this many bytes are waiting for it, and a write takes at most
+  // this many bytes.
+  static private final int batchBytes = Integer.getInteger("chat.batchBytes", 65536);
+  
+  // How long to hold outbound data past the end of the iteration, in microseconds, so busier rooms fill bigger
+  // batches. 0 flushes at the end of every iteration.
+  static private final long batchDelay = Long.getLong("chat.batchDelay", 0) * 1000;
+  
+  // Most a connection may have waiting to be sent, in bytes. What to do with room traffic beyond that is up to
+  // slowPolicy: "drop-oldest" drops the oldest lines queued to make room, "drop-newest" drops the new line, and
+  // "disconnect" sends the client BYE and closes it. Replies to its own commands are always queued, pushing out room
+  // traffic if they must.
+  static private final long outBytes = Long.getLong("chat.outBytes", 1 << 20);
+  static private final String slowPolicy = System.getProperty("chat.slowPolicy", "drop-oldest");
+  
+  // Most all connections together may have waiting, in bytes. Beyond that a client only gets room traffic if it has
+  // nothing queued, so whoever keeps up still gets everything.
+  static private final long outTotal = Long.getLong("chat.outTotal", 256 << 20);
+  
+  // Bytes in every client's out and ctl queues.
+  static private final AtomicLong queuedTotal = new AtomicLong();
+  
+  // Where the buffers for reading and sending come from, with at most this many bytes of pooled memory.
+  static final BufferPool pool = new BufferPool(Long.getLong("chat.poolBytes", 64 << 20));
+  
+  // For the clients that sent /compress: the deflate level, and the smallest reply, private message or notice worth
+  // deflating on its own, in bytes. Chat lines always go through their room's stream.
+  static private final Compressor compressor = new Compressor(pool, Integer.getInteger("chat.compressLevel", 6),
+    Integer.getInteger("chat.compressMin", 256));
+  
+  // Timeouts of the event loops, in seconds, 0 for none. A connection that hasn't set a nickname nickTimeout after
+  // connecting, or that sent nothing for idleTimeout, is sent BYE and closed. One that sent nothing for pingInterval
+  // is sent a PING, which clients answer with /pong.
+  static private final long nickTimeout = Long.getLong("chat.nickTimeout", 0) * 1000000000L;
+  static private final long idleTimeout = Long.getLong("chat.idleTimeout", 0) * 1000000000L;
+  static private final long pingInterval = Long.getLong("chat.pingInterval", 0) * 1000000000L;
+  
+  // How long a connection that was sent BYE gets to take it before it is closed anyway.
+  static private final long byeTimeout = 10 * 1000000000L;
+  
+  // Which engine serves the connections: "selector" for the event loops, "threads" for a thread per connection.
+  static private final String engine = System.getProperty("chat.engine", "selector");
+  
+  // What happens to connections is recorded in the journal instead of printed by the threads serving them: in
+  // chat.journalFiles files of chat.journalSize bytes in the directory chat.journal, or without one printed by the
+  // journal's own thread. chat.journalRing records can be waiting to be written before more are dropped.
+  static private final Journal journal = new Journal(Integer.getInteger("chat.journalRing", 65536),
+    System.getProperty("chat.journal") != null ? Paths.get(System.getProperty("chat.journal")) : null,
+    Long.getLong("chat.journalSize", 64 << 20), Integer.getInteger("chat.journalFiles", 8));
+  
+  // Who may use /stats: "local" for clients on a loopback address, "all" or "none".
+  static private final String statsFrom = System.getProperty("chat.stats", "local");
+  
+  // The metrics of every event loop and of the thread engine, so they can be added up.
+  static private final CopyOnWriteArrayList<Metrics> allMetrics = new CopyOnWriteArrayList<>();
+  
+  // Shared by all the threads of the thread per connection engine, and the cluster's links.
+  static private final Metrics threadMetrics = new Metrics(true);
+  
+  // Runs the commands in the lines a client sends, for whichever engine read them. The parser isn't thread safe, so
+  // every thread that reads lines has its own.
+  static private abstract class LineHandler implements LineFramer.Handler
+  {
     
-    String message = decoder.decode(buffer).toString();
+    protected final CommandParser parser;
     
-    Client c = clients.get(sc);
+    protected final Metrics metrics;
     
-    StringBuffer command = c.buffer;
+    // The client whose input is being framed.
+    protected Client reading;
     
-    // Append to buffer until we recieve LF (line feed) from that SocketChannel
-    if (!message.endsWith("\n"))
+    protected LineHandler(CommandParser parser, Metrics metrics)
     {
-      c.buffer.append(message);
+      this.parser = parser;
+      this.metrics = metrics;
     }
     
-    else
+    // Called by the framer for each complete line the client sent.
+    public void line(ByteBuffer buf, int start, int end) throws IOException
     {
       
-      command.append(message);
+      metrics.add(Metrics.LINES_IN, 1);
+      
+      // Anything after a /bye is ignored, and whatever is over the byte budget turned away.
+      if (reading.closing || flooded(reading, reading.byteBudget, end - start))
+      {
+        return;
+      }
+      
+      processLine(reading, buf, start, end);
       
-      message = command.toString();
+    }
+    
+    // Called by the framer for each frame a binary client sent, from its opcode on.
+    public void frame(ByteBuffer buf, int start, int end) throws IOException
+    {
       
-      command = new StringBuffer();
-      c.buffer = command;
+      metrics.add(Metrics.LINES_IN, 1);
       
-      // If message starts as '/'[a-z]+ then it's possibly a command
-      if (message.charAt(0) == '/' && message.charAt(1) != '/')
+      if (reading.closing || flooded(reading, reading.byteBudget, end - start))
       {
-        
-        cmdScanner = new Scanner(message);
-        
-        String cmd = cmdScanner.next();
-        
-        switch (cmd)
-        {
-          case "/nick":
-            
-            if (!cmdScanner.hasNext())
-            {
-              // Too few arguments
-              sendStatus(sc, "ERROR\n");
-              break;
-            }
-            
-            changeNick(sc, c, cmdScanner.next());
-            
-            break;
-            
-          case "/join":
-          
-            if (!cmdScanner.hasNext())
-            {
-              // Too few arguments
-              sendStatus(sc, "ERROR\n");
-              break;
+        return;
+      }
+      
+      int op = buf.get(start);
+      
+      // Private messages come out of the same budget as chat lines, /bye and /pong out of none.
+      TokenBucket budget = op == BinaryProtocol.MESSAGE || op == BinaryProtocol.PRIV || op == BinaryProtocol.PRIV_ID ?
+        reading.messageBudget : op == BinaryProtocol.BYE || op == BinaryProtocol.PONG ? null : reading.commandBudget;
+      
+      if (flooded(reading, budget, 1))
+      {
+        return;
+      }
+      
+      processFrame(reading, op, buf, start + 1, end);
+      
+    }
+    
+    public void overflow() throws IOException
+    {
+      
+      // Line too long
+      sendError(reading, Metrics.TOO_LONG);
+      
+    }
+    
+    private void processLine(Client c, ByteBuffer buf, int start, int end) throws IOException
+    {
+      
+      // If message starts as '/'[a-z]+ then it's possibly a command
+      if (CommandParser.isCommand(buf, start, end))
+      {
+        
+        parser.parse(buf, start, end);
+        
+        // Private messages come out of the same budget as chat lines, /bye and /pong out of none.
+        TokenBucket budget = parser.command == CommandParser.PRIV ? c.messageBudget :
+          parser.command == CommandParser.BYE || parser.command == CommandParser.PONG ? null : c.commandBudget;
+        
+        if (flooded(c, budget, 1))
+        {
+          return;
+        }
+        
+        switch (parser.command)
+        {
+          case CommandParser.NICK:
+            
+            if (parser.args == 0)
+            {
+              // Too few arguments
+              sendError(c, Metrics.ARGUMENTS);
+              break;
             }
             
-            joinRoom(sc, c, cmdScanner.next());
-          
+            changeNick(c, parser.argument(buf));
+            
             break;
+          
+          case CommandParser.JOIN:
+            
+            if (parser.args == 0)
+            {
+              // Too few arguments
+              sendError(c, Metrics.ARGUMENTS);
+              break;
+            }
             
-          case "/leave":
+            joinRoom(c, parser.argument(buf));
+            
+            break;
           
-            if (cmdScanner.hasNext())
+          case CommandParser.LEAVE:
+            
+            if (parser.args > 0)
             {
               // Too many arguments
-              sendStatus(sc, "ERROR\n");
+              sendError(c, Metrics.ARGUMENTS);
               break;
             }
-          
-            leaveRoom(sc, c);
-          
-            break;
             
-          case "/bye":
+            leaveRoom(c);
+            
+            break;
           
-            if (cmdScanner.hasNext())
+          case CommandParser.BYE:
+            
+            if (parser.args > 0)
             {
               // Too many arguments
-              sendStatus(sc, "ERROR\n");
+              sendError(c, Metrics.ARGUMENTS);
               break;
             }
             
             if (c.inside)
             {
-              leaveRoom(sc, c);
+              leaveRoom(c);
             }
             
-            leave(sc, c);
+            leave(c);
             
             break;
+          
+          case CommandParser.PRIV:
             
-          case "/priv":
-            
-            if (!cmdScanner.hasNext())
+            if (parser.args == 0)
             {
               // Too few arguments
-              sendStatus(sc, "ERROR\n");
+              sendError(c, Metrics.ARGUMENTS);
               break;
               
             }
             
-            // The destination of the private message is cmdScanner's next() value.
-            String to = cmdScanner.next();
+            // The destination of the private message is the first argument, the message is everything after it and
+            // one separator, up to the LF.
+            if (parser.argEnd >= end - 1)
+            {
+              // Message content empty
+              sendError(c, Metrics.ARGUMENTS);
+              break;
+            }
+            
+            sendPriv(c, parser.argument(buf), buf, parser.argEnd + 1, end - 1);
             
-            // Stripping String message of '/priv'
-            String nMessage = message.substring(message.indexOf(to), message.length()-1);
+            break;
+          
+          case CommandParser.PONG:
+            
+            // The answer to a PING, reading it was all it took.
+            break;
+          
+          case CommandParser.STATS:
             
-            if (nMessage.length() <= to.length())
+            if (parser.args > 0)
             {
-              // Message content empty
-              sendStatus(sc, "ERROR\n");
+              // Too many arguments
+              sendError(c, Metrics.ARGUMENTS);
+              break;
+            }
+            
+            sendStats(c);
+            
+            break;
+          
+          case CommandParser.BINARY:
+            
+            if (parser.args > 0)
+            {
+              // Too many arguments
+              sendError(c, Metrics.ARGUMENTS);
               break;
             }
             
-            // Trim the command-less string so that only the message is saved.
-            nMessage = nMessage.substring(to.length()+1, nMessage.length());
+            // Only before the nickname, after that other loops may be encoding text for the client.
+            if (!c.init)
+            {
+              sendError(c, Metrics.TOO_LATE);
+              break;
+            }
+            
+            // The OK is the last text the client gets, whatever it sent after /binary is framed already.
+            sendStatus(c, "OK\n");
             
-            sendPriv(sc, c, to, nMessage+"\n");
+            c.binary = true;
+            c.framer.binary();
             
             break;
+          
+          case CommandParser.COMPRESS:
             
-          default:
+            if (parser.args > 0)
+            {
+              // Too many arguments
+              sendError(c, Metrics.ARGUMENTS);
+              break;
+            }
+            
+            startCompressing(c);
+            
+            break;
           
+          default:
+            
             // When it isn't a valid command
-            sendStatus(sc, "ERROR\n");
+            sendError(c, Metrics.UNKNOWN_COMMAND);
+            
+            break;
+        }
+        
+      }
+      
+      // If nothing has been escaped or cmd doesn't start with a '/' -> it is a message, forwarded without its LF
+      else if (!flooded(c, c.messageBudget, 1))
+      {
+        sendToRoom(c, buf, start, end - 1);
+      }
+      
+    }
+    
+    // The binary twin of processLine(), for a frame with opcode op and its body in buf[start, end). Names and text
+    // are where the frame says, there's nothing to tokenize.
+    private void processFrame(Client c, int op, ByteBuffer buf, int start, int end) throws IOException
+    {
+      
+      switch (op)
+      {
+        case BinaryProtocol.MESSAGE:
+          
+          // A LF would let the text pass for more lines to text clients.
+          if (!oneLine(buf, start, end))
+          {
+            sendError(c, Metrics.ARGUMENTS);
+            break;
+          }
+          
+          sendToRoom(c, buf, start, end);
+          
+          break;
+        
+        case BinaryProtocol.NICK:
+          
+          if (!CommandParser.isWord(buf, start, end))
+          {
+            sendError(c, Metrics.ARGUMENTS);
+            break;
+          }
+          
+          changeNick(c, parser.name(buf, start, end));
+          
+          break;
+        
+        case BinaryProtocol.JOIN:
+          
+          if (!CommandParser.isWord(buf, start, end))
+          {
+            sendError(c, Metrics.ARGUMENTS);
+            break;
+          }
+          
+          joinRoom(c, parser.name(buf, start, end));
+          
+          break;
+        
+        case BinaryProtocol.LEAVE:
+          
+          leaveRoom(c);
+          
+          break;
+        
+        case BinaryProtocol.BYE:
+          
+          if (c.inside)
+          {
+            leaveRoom(c);
+          }
           
+          leave(c);
+          
+          break;
+        
+        case BinaryProtocol.PRIV:
+          
+          // Where the nickname ends and the text starts.
+          int to = end - start >= 2 ? start + 2 + (buf.getShort(start) & 0xFFFF) : end;
+          
+          if (to >= end || !CommandParser.isWord(buf, start + 2, to) || !oneLine(buf, to, end))
+          {
+            sendError(c, Metrics.ARGUMENTS);
+            break;
+          }
+          
+          sendPriv(c, parser.name(buf, start + 2, to), buf, to, end);
+          
+          break;
+        
+        case BinaryProtocol.PRIV_ID:
+          
+          if (end - start <= 4 || !oneLine(buf, start + 4, end))
+          {
+            sendError(c, Metrics.ARGUMENTS);
+            break;
+          }
+          
+          sendPriv(c, buf.getInt(start), buf, start + 4, end);
+          
+          break;
+        
+        case BinaryProtocol.PONG:
+          
+          break;
+        
+        case BinaryProtocol.COMPRESS:
+          
+          startCompressing(c);
+          
+          break;
+        
+        case BinaryProtocol.STATS:
+          
+          sendStats(c);
+          
+          break;
+        
+        default:
+          
+          sendError(c, Metrics.UNKNOWN_COMMAND);
+          
+          break;
+      }
+      
+    }
+    
+    // Compress what is sent to the client from now on, the OK being the last of it that isn't.
+    static private void startCompressing(Client c) throws IOException
+    {
+      
+      // Only before the nickname, after that other loops may be queueing for the client at the same time.
+      if (!c.init)
+      {
+        sendError(c, Metrics.TOO_LATE);
+        return;
+      }
+      
+      sendStatus(c, "OK\n");
+      c.compressing = true;
+      
+    }
+    
+    static private boolean oneLine(ByteBuffer buf, int start, int end)
+    {
+      
+      for (int i = start; i < end; i++)
+      {
+        if (buf.get(i) == '\n')
+        {
+          return false;
+        }
+      }
+      
+      return true;
+      
+    }
+    
+  }
+  
+  // One selector and one thread serving a share of the connections. With a single loop it also accepts them, with
+  // several the acceptors hand each new SocketChannel to the next loop in turn.
+  static private class EventLoop extends LineHandler implements Runnable, TimerWheel.Handler
+  {
+    
+    // A pre-allocated buffer for the received data, shared by all the clients of this loop. Direct, so the JDK reads
+    // straight into it.
+    private final ByteBuffer buffer = pool.take( 16384 ).memory;
+    
+    private final Selector selector;
+    
+    private volatile Thread thread;
+    
+    // Its place in loops.
+    private final int index;
+    
+    // SocketChannels accepted by the acceptor that still have to be registered with this loop's selector.
+    private final ConcurrentLinkedQueue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+    
+    // Clients of this loop that other loops queued data for.
+    private final ConcurrentLinkedQueue<Client> flushes = new ConcurrentLinkedQueue<>();
+    
+    // Clients of this loop whose /nick claim was answered, or given up on.
+    private final ConcurrentLinkedQueue<Client> answers = new ConcurrentLinkedQueue<>();
+    
+    // Most tasks of one room run in one turn.
+    static private final int ROOM_TURN = 32;
+    
+    // Rooms of this loop that other threads handed work to, and those that had more waiting than one turn runs.
+    private final ConcurrentLinkedQueue<Room> rooms = new ConcurrentLinkedQueue<>();
+    private final ArrayList<Room> unfinished = new ArrayList<>();
+    
+    // Time spent running rooms this period, and in the last one, which other loops compare theirs with. A period is
+    // a second, see rebalance().
+    private long busy;
+    private volatile long load;
+    private long period;
+    private long periodStarted = System.nanoTime();
+    
+    // Clients with data held for the end of the tick, and when that data has to go out at the latest.
+    private final ArrayList<Client> batched = new ArrayList<>();
+    private long deadline;
+    
+    // The buffers of one gathering write, and the views of them that are written.
+    private final BufferPool.Buffer[] taken = new BufferPool.Buffer[256];
+    private final ByteBuffer[] gather = new ByteBuffer[256];
+    
+    // A view of every pooled buffer this loop wrote, by buffer id, reused for every write of that buffer so writing
+    // allocates nothing. The gathering write a view was last used in, so a buffer queued twice gets a second view.
+    private ByteBuffer[] views = new ByteBuffer[1024];
+    private int[] used = new int[1024];
+    private int writes;
+    
+    // Timeouts of this loop's clients, in ticks of 100ms.
+    private final TimerWheel timers = new TimerWheel(512, 100000000L, System.nanoTime());
+    
+    // When the current iteration started.
+    private long now;
+    
+    // listeners are those this loop accepts connections from itself, none if the acceptors hand them over.
+    public EventLoop(ServerSocketChannel[] listeners, int index) throws IOException
+    {
+      
+      // Its metrics are only updated by this loop's thread.
+      super(new CommandParser(), new Metrics());
+      
+      // Create a new Selector for selecting
+      this.selector = Selector.open();
+      this.index = index;
+      
+      for (ServerSocketChannel listener : listeners)
+      {
+        // Register the ServerSocketChannel, so we can listen for incoming
+        // connections. Its timer takes it back after a failed accept().
+        SelectionKey key = listener.register( selector, SelectionKey.OP_ACCEPT );
+        
+        key.attach(new TimerWheel.Timer(key));
+      }
+      
+      allMetrics.add(metrics);
+      
+    }
+    
+    // Called by the acceptor thread, the loop registers the channel itself on its next wake up.
+    public void register(SocketChannel sc)
+    {
+      
+      incoming.add(sc);
+      selector.wakeup();
+      
+    }
+    
+    // Called by other loops after queueing data for one of this loop's clients.
+    public void flushLater(Client c)
+    {
+      
+      if (!c.flushQueued.getAndSet(true))
+      {
+        flushes.add(c);
+        selector.wakeup();
+      }
+      
+    }
+    
+    // Called by whoever completes a client's claim, its loop finishes the /nick on its next wake up.
+    public void answered(Client c)
+    {
+      
+      answers.add(c);
+      selector.wakeup();
+      
+    }
+    
+    // Called by other threads after handing work to one of this loop's rooms.
+    public void runLater(Room room)
+    {
+      
+      rooms.add(room);
+      selector.wakeup();
+      
+    }
+    
+    public boolean inLoop()
+    {
+      return Thread.currentThread() == thread;
+    }
+    
+    // Run what is waiting in the inbox of a room this loop scheduled, until it's empty or this turn's share is used
+    // up. A room that still has more stays scheduled and gets another turn after this tick's writes went out, so
+    // its members' sockets are written to between batches and other rooms and connections get their turn.
+    private void run(Room room)
+    {
+      
+      long started = System.nanoTime();
+      int budget = ROOM_TURN;
+      
+      do
+      {
+        Runnable task;
+        
+        while ((task = room.inbox.poll()) != null)
+        {
+          task.run();
+          
+          if (--budget <= 0 && !room.inbox.isEmpty())
+          {
+            unfinished.add(room);
+            selector.wakeup();
             break;
+          }
+        }
+        
+        if (budget <= 0 && task != null)
+        {
+          break;
         }
         
+        room.scheduled.set(false);
+      }
+      // Whatever was handed over after the last poll() found the room still scheduled, so it's ours to run.
+      while (!room.inbox.isEmpty() && room.scheduled.compareAndSet(false, true));
+      
+      long took = System.nanoTime() - started;
+      
+      if (room.period != period)
+      {
+        room.period = period;
+        room.busy = 0;
       }
       
-      // If nothing has been escaped or cmd doesn't start with a '/' -> it is a message
-      else
+      room.busy += took;
+      busy += took;
+      
+    }
+    
+    // Once a second: if rooms kept this loop busier than the least busy loop by more than chat.rebalance, hand that
+    // loop the room of this one that was busiest without being more than half the difference, which evens the two
+    // out the most. A room that alone makes a loop hot stays where it is, moving it would only move the problem.
+    private void rebalance(long now)
+    {
+      
+      if (now - periodStarted < 1000000000L)
+      {
+        return;
+      }
+      
+      load = busy;
+      busy = 0;
+      periodStarted = now;
+      
+      EventLoop idlest = this;
+      
+      for (EventLoop loop : loops)
+      {
+        if (loop.load < idlest.load)
+        {
+          idlest = loop;
+        }
+      }
+      
+      long gap = load - idlest.load;
+      
+      if (rebalance > 0 && gap > rebalance)
+      {
+        Room best = null;
+        
+        for (Room room : chatRooms.values())
+        {
+          if (room.owner == this && room.period == period && room.busy <= gap / 2
+            && (best == null || room.busy > best.busy))
+          {
+            best = room;
+          }
+        }
+        
+        // Only moved while it isn't scheduled here, what its inbox gets from now on goes to its new owner.
+        if (best != null && best.scheduled.compareAndSet(false, true))
+        {
+          best.owner = idlest;
+          best.scheduled.set(false);
+          
+          ChatServer.schedule(best);
+          
+          metrics.add(Metrics.ROOMS_MOVED, 1);
+        }
+      }
+      
+      period++;
+      
+    }
+    
+    public void run()
+    {
+      
+      thread = Thread.currentThread();
+      
+      try
+      {
+        
+        while (true)
+        {
+          // See if we've had any activity -- either an incoming connection,
+          // or incoming data on an existing connection. Wake up at least once a second to keep the rates current.
+          int num = selector.select(timeout());
+          
+          long started = System.nanoTime();
+          
+          now = started;
+          metrics.tick(started);
+          timers.advance(started, this);
+          rebalance(started);
+          
+          // Work handed over by other threads doesn't show up as selected keys.
+          runPending();
+          
+          // If we don't have any activity, loop around and wait again
+          if (num == 0)
+          {
+            endTick(started);
+            continue;
+          }
+          
+          // Get the keys corresponding to the activity that has been
+          // detected, and process them one by one
+          Set<SelectionKey> keys = selector.selectedKeys();
+          Iterator<SelectionKey> it = keys.iterator();
+          
+          while (it.hasNext())
+          {
+            // Get a key representing one of bits of I/O activity
+            SelectionKey key = it.next();
+            
+            // What kind of activity is it?
+            if ((key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT)
+            {
+              
+              // Incoming connections, all of those waiting and not just one, as there may be thousands after a
+              // restart. Register the admitted ones with the Selector so we can listen for input on them.
+              ServerSocketChannel listener = (ServerSocketChannel)key.channel();
+              SocketChannel sc;
+              
+              while ((sc = accept(key, listener)) != null)
+              {
+                if (admit(sc, metrics, index))
+                {
+                  accept(sc);
+                }
+              }
+              
+              continue;
+            }
+            
+            // The key may have been cancelled while handling an earlier key of this same round (e.g. a failed write).
+            if (!key.isValid())
+            {
+              continue;
+            }
+            
+            if ((key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ)
+            {
+              
+              // The Client was attached to the key when the connection was registered.
+              Client c = (Client)key.attachment();
+              SocketChannel sc = c.channel;
+              
+              try
+              {
+                
+                // It's incoming data on a connection -- process it
+                boolean ok = processInput(c);
+                
+                // If the connection is dead, remove it from the selector
+                // and close it
+                if (!ok)
+                {
+                  key.cancel();
+                  
+                  Socket s = null;
+                  
+                  try
+                  {
+                    s = sc.socket();
+                    
+                    if (c.inside)
+                    {
+                      // If the client attached to the SocketChannel was in a chat room, we ought to leave it first.
+                      leaveRoom(c);
+                    }
+                    
+                    // We can now remove the client c, with key SocketChannel sc, from the clients HashMap
+                    forget(c);
+                    
+                    record(Journal.CLOSED, c, c.closing ? Journal.BYE : Journal.PEER, 0);
+                    s.close();
+                    dispose(c);
+                  }
+                  
+                  catch( IOException ie )
+                  {
+                    record(Journal.CLOSE_ERROR, c, ie);
+                  }
+                }
+                
+              }
+              
+              catch( IOException ie )
+              {
+                
+                // On exception, remove this channel from the selector. What went wrong is journaled first, so a reset
+                // by the peer can be told from other errors.
+                key.cancel();
+                
+                record(Journal.READ_ERROR, c, ie);
+                record(Journal.CLOSED, c, Journal.RESET, 0);
+                
+                try
+                {
+                  sc.close();
+                  
+                  // A reset connection leaves its room like a closed one does, or it would stay there as a ghost.
+                  if (c.inside)
+                  {
+                    leaveRoom(c);
+                  }
+                  
+                  forget(c);
+                  dispose(c);
+                }
+                
+                catch( IOException ie2 )
+                {
+                  record(Journal.CLOSE_ERROR, c, ie2);
+                }
+              }
+            }
+            
+            // The socket can take more data, so carry on draining that client's outbound queue.
+            if (key.isValid() && (key.readyOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE)
+            {
+              flush((Client)key.attachment());
+            }
+          }
+          
+          // We remove the selected keys, because we've dealt with them.
+          keys.clear();
+          
+          endTick(started);
+        }
+      }
+      
+      catch( IOException ie )
+      {
+        journal.record(Journal.LOOP_ENDED, index, 0, ie);
+      }
+      
+    }
+    
+    // A view of b from offset on, for the gathering write being put together.
+    private ByteBuffer view(BufferPool.Buffer b, int offset)
+    {
+      
+      if (b.id < 0)
+      {
+        return b.duplicate().position(offset);
+      }
+      
+      if (b.id >= views.length)
+      {
+        int size = Math.max(views.length * 2, pool.ids());
+        
+        views = Arrays.copyOf(views, size);
+        used = Arrays.copyOf(used, size);
+      }
+      
+      ByteBuffer v = views[b.id];
+      
+      if (v == null)
+      {
+        v = views[b.id] = b.memory.asReadOnlyBuffer();
+      }
+      
+      else if (used[b.id] == writes)
+      {
+        return b.duplicate().position(offset);
+      }
+      
+      used[b.id] = writes;
+      
+      v.limit(b.length()).position(offset);
+      
+      return v;
+      
+    }
+    
+    // Register newly handed over channels, run the rooms other threads handed work to and write out data other
+    // loops queued for our clients.
+    private void runPending() throws IOException
+    {
+      
+      SocketChannel sc;
+      
+      while ((sc = incoming.poll()) != null)
+      {
+        accept(sc);
+      }
+      
+      Room room;
+      
+      while ((room = rooms.poll()) != null)
+      {
+        run(room);
+      }
+      
+      // Those that have more go to the back of the line, run() already saw to it that the next select() doesn't
+      // wait.
+      rooms.addAll(unfinished);
+      unfinished.clear();
+      
+      Client c;
+      
+      while ((c = answers.poll()) != null)
+      {
+        claimed(c);
+      }
+      
+      while ((c = flushes.poll()) != null)
+      {
+        // Cleared first, so anything queued from now on schedules another flush.
+        c.flushQueued.set(false);
+        
+        if (c.evicted.get() || !c.writing)
+        {
+          batch(c, 0);
+        }
+      }
+      
+    }
+    
+    // Finish the /nick a client waited for the cluster with, then go on with what it sent after it.
+    private void claimed(Client c) throws IOException
+    {
+      
+      String nick = c.claiming;
+      int claimed = c.claim.join();
+      
+      c.claim = null;
+      c.claiming = null;
+      
+      // Closed meanwhile, the nickname it would have had is free again.
+      if (!c.key.isValid())
+      {
+        nicks.remove(nick, c);
+        
+        if (claimed == Cluster.GRANTED)
+        {
+          cluster.release(nick);
+        }
+        
+        return;
+      }
+      
+      renamed(c, nick, claimed);
+      proceed(c);
+      
+    }
+    
+    // Stop reading from a client that is paused or waiting for a claim, until its timer or the answer has it go on.
+    // False if nothing holds it.
+    private boolean hold(Client c)
+    {
+      
+      if (c.closing || !c.held())
+      {
+        return false;
+      }
+      
+      if (c.paused)
+      {
+        metrics.add(Metrics.PAUSED, 1);
+      }
+      
+      c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_READ);
+      schedule(c);
+      
+      return true;
+      
+    }
+    
+    // Frame what a client sent before it was held, once nothing holds it any more, and read from it again unless
+    // that holds it again.
+    private void proceed(Client c) throws IOException
+    {
+      
+      if (c.held())
+      {
+        return;
+      }
+      
+      reading = c;
+      c.framer.resume(this);
+      
+      if (c.key.isValid() && !hold(c))
+      {
+        c.key.interestOps(c.key.interestOps() | SelectionKey.OP_READ);
+      }
+      
+    }
+    
+    // Hold data just queued for one of this loop's clients until the end of the tick, unless enough is waiting.
+    private void batch(Client c, int bytes)
+    {
+      
+      if (!c.batched)
+      {
+        c.batched = true;
+        
+        if (batched.isEmpty() && batchDelay > 0)
+        {
+          deadline = System.nanoTime() + batchDelay;
+        }
+        
+        batched.add(c);
+      }
+      
+      c.batchedBytes += bytes;
+      
+      if (c.batchedBytes >= batchBytes)
+      {
+        flush(c);
+      }
+      
+    }
+    
+    // How long select() may wait, no longer than until held data is due or the next timer tick.
+    private long timeout()
+    {
+      
+      long timeout = 1000;
+      
+      if (!batched.isEmpty())
+      {
+        timeout = Math.max(1, (deadline - System.nanoTime() + 999999) / 1000000);
+      }
+      
+      if (!timers.isEmpty())
+      {
+        timeout = Math.min(timeout, Math.max(1, (timers.untilNextTick(System.nanoTime()) + 999999) / 1000000));
+      }
+      
+      return timeout;
+      
+    }
+    
+    // Start or move a client's timer to the next of its deadlines, if it has any.
+    private void schedule(Client c)
+    {
+      
+      long next = Long.MAX_VALUE;
+      
+      if (c.init && nickTimeout > 0)
+      {
+        next = c.connected + nickTimeout;
+      }
+      
+      if (idleTimeout > 0)
+      {
+        next = Math.min(next, c.lastRead + idleTimeout);
+      }
+      
+      if (pingInterval > 0 && !c.pinged)
+      {
+        next = Math.min(next, c.lastRead + pingInterval);
+      }
+      
+      if (c.paused)
+      {
+        next = Math.min(next, c.resume);
+      }
+      
+      if (c.claim != null)
+      {
+        next = Math.min(next, c.claimEnd);
+      }
+      
+      if (next != Long.MAX_VALUE)
+      {
+        timers.schedule(c.timer, next);
+      }
+      
+    }
+    
+    // The next connection waiting on listener, null if there is none. When accept() fails, most likely out of file
+    // descriptors, the loop stops accepting from it until the next tick of its timers, and serves the connections it
+    // has meanwhile, some of which may be on their way out.
+    private SocketChannel accept(SelectionKey key, ServerSocketChannel listener)
+    {
+      
+      try
+      {
+        return listener.accept();
+      }
+      
+      catch( IOException ie )
+      {
+        journal.record(Journal.ACCEPT_ERROR, index, 0, ie);
+        
+        key.interestOps(0);
+        timers.schedule((TimerWheel.Timer)key.attachment(), now);
+        
+        return null;
+      }
+      
+    }
+    
+    // A client's timer went off, or that of a listener accept() failed on. Reads don't move a client's, so see which
+    // deadline, if any, has really passed.
+    public void expired(TimerWheel.Timer timer, long now) throws IOException
+    {
+      
+      if (timer.attachment instanceof SelectionKey)
+      {
+        SelectionKey key = (SelectionKey)timer.attachment;
+        
+        if (key.isValid())
+        {
+          key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        
+        return;
+      }
+      
+      Client c = (Client)timer.attachment;
+      
+      if (!c.key.isValid())
+      {
+        return;
+      }
+      
+      // It was sent BYE and never took it, the peer is most likely gone.
+      if (c.closing)
+      {
+        close(c);
+        return;
+      }
+      
+      // Back within its flood budgets. A pause doesn't count as idle time.
+      if (c.paused && now - c.resume >= 0)
+      {
+        c.paused = false;
+        c.lastRead = Math.max(c.lastRead, c.resume);
+        
+        proceed(c);
+        
+        if (!c.key.isValid())
+        {
+          return;
+        }
+      }
+      
+      // The nickname's owner didn't answer in time, the /nick fails with UNREACHABLE.
+      if (c.claim != null && now - c.claimEnd >= 0)
+      {
+        c.claim.complete(Cluster.UNREACHABLE);
+      }
+      
+      if (c.init && nickTimeout > 0 && now - c.connected >= nickTimeout)
+      {
+        expire(c);
+        return;
+      }
+      
+      long idle = now - c.lastRead;
+      
+      if (idleTimeout > 0 && idle >= idleTimeout)
+      {
+        expire(c);
+        return;
+      }
+      
+      if (pingInterval > 0 && idle >= pingInterval && !c.pinged)
+      {
+        c.pinged = true;
+        sendStatus(c, "PING\n");
+      }
+      
+      schedule(c);
+      
+    }
+    
+    // Disconnect a client that enqueue() gave up on, like a timed out one.
+    private void disconnect(Client c) throws IOException
+    {
+      
+      // Already on its way out.
+      if (c.closing)
+      {
+        return;
+      }
+      
+      record(Journal.EVICTED, c, 0, 0);
+      
+      if (c.inside)
+      {
+        leaveRoom(c);
+      }
+      
+      leave(c);
+      
+    }
+    
+    // Disconnect a client that timed out the way /bye does, so its room hears it LEFT.
+    private void expire(Client c) throws IOException
+    {
+      
+      record(Journal.TIMED_OUT, c, 0, 0);
+      
+      metrics.add(Metrics.TIMED_OUT, 1);
+      
+      if (c.inside)
+      {
+        leaveRoom(c);
+      }
+      
+      leave(c);
+      
+    }
+    
+    // Write out what was held for this tick, once it is due, and time the iteration.
+    private void endTick(long started) throws IOException
+    {
+      
+      if (!batched.isEmpty() && (batchDelay == 0 || System.nanoTime() - deadline >= 0))
+      {
+        // By index, disconnecting a client queues for others, who may join the list.
+        for (int i = 0; i < batched.size(); i++)
+        {
+          Client c = batched.get(i);
+          
+          c.batched = false;
+          
+          // Skip the ones that went away during the tick.
+          if (!c.key.isValid())
+          {
+            continue;
+          }
+          
+          if (c.evicted.get())
+          {
+            disconnect(c);
+          }
+          
+          else if (!c.writing)
+          {
+            flush(c);
+          }
+        }
+        
+        batched.clear();
+      }
+      
+      metrics.loopTime.record(System.nanoTime() - started);
+      
+    }
+    
+    private void accept(SocketChannel sc) throws IOException
+    {
+      
+      SelectionKey clientKey;
+      
+      try
+      {
+        // Make sure to make it non-blocking, so we can use a selector
+        // on it.
+        sc.configureBlocking( false );
+        
+        // Register it with the selector, for reading
+        clientKey = sc.register( selector, SelectionKey.OP_READ );
+      }
+      
+      // Gone already, it was counted in by admit() but never makes it to forget().
+      catch( IOException ie )
+      {
+        connections.decrementAndGet();
+        sc.close();
+        return;
+      }
+      
+      // Attach the client to its key, so reading and writing find it without a lookup.
+      Client c = new Client(sc, clientKey, this);
+      clientKey.attach(c);
+      
+      // Add another object to the HashMap containing the newly connected client.
+      clients.put(sc, c);
+      
+      metrics.add(Metrics.ACCEPTED, 1);
+      journal.record(Journal.ACCEPTED, index, c.id, sc);
+      
+      schedule(c);
+      
+    }
+    
+    // Read what the SocketChannel has for us and handle every complete line in it.
+    private boolean processInput(Client c) throws IOException
+    {
+      
+      // Get the buffer to read into, the shared one or the client's own when part of a line is pending.
+      ByteBuffer target = c.framer.target(buffer);
+      
+      int read = c.channel.read(target);
+      
+      if (read <= 0)
+      {
+        return false;
+      }
+      
+      metrics.add(Metrics.BYTES_IN, read);
+      
+      // Only noted here, the client's timer finds out when it goes off.
+      c.lastRead = now;
+      c.pinged = false;
+      
+      reading = c;
+      c.framer.frame(target, this);
+      
+      // Over its budget with chat.floodPolicy "pause", or waiting for the cluster to answer a /nick. Its timer, or
+      // the answer, has the rest framed and reads from it again.
+      if (c.key.isValid())
+      {
+        hold(c);
+      }
+      
+      return true;
+    }
+    
+  }
+  
+  // The thread per connection engine. A reader thread blocks on the SocketChannel and runs the client's commands, a
+  // writer thread blocks until something is queued for the client and writes it out. They are virtual threads where
+  // the JVM has them (Java 21 and later) and platform threads otherwise.
+  static private class Connection extends LineHandler implements Runnable
+  {
+    
+    static private boolean virtual;
+    static private final ThreadFactory threads = threadFactory();
+    
+    private final Client client;
+    
+    // Where reads go, unless part of a line is pending in the framer's carry buffer.
+    private final BufferPool.Buffer readBuffer = pool.take( 1024 );
+    private final ByteBuffer buffer = readBuffer.memory;
+    
+    public Connection(SocketChannel sc)
+    {
+      
+      // A parser per connection, with a small name cache as it only ever sees this client's commands.
+      super(new CommandParser(16), threadMetrics);
+      
+      this.client = new Client(sc, null, null);
+      this.reading = client;
+      
+    }
+    
+    public void start()
+    {
+      
+      client.writer = threads.newThread(this::write);
+      
+      clients.put(client.channel, client);
+      metrics.add(Metrics.ACCEPTED, 1);
+      journal.record(Journal.ACCEPTED, -1, client.id, client.channel);
+      
+      client.writer.start();
+      threads.newThread(this).start();
+      
+    }
+    
+    // The reader, the blocking twin of EventLoop.processInput().
+    public void run()
+    {
+      
+      Client c = client;
+      
+      try
+      {
+        
+        while (!c.closing)
+        {
+          ByteBuffer target = c.framer.target(buffer);
+          
+          int read = c.channel.read(target);
+          
+          if (read < 0)
+          {
+            break;
+          }
+          
+          metrics.add(Metrics.BYTES_IN, read);
+          c.framer.frame(target, this);
+          
+          // Over its budget with chat.floodPolicy "pause", the rest of the read is framed and more read once it's
+          // back within it.
+          while (c.paused && !c.closing)
+          {
+            metrics.add(Metrics.PAUSED, 1);
+            
+            long wait;
+            
+            while ((wait = c.resume - System.nanoTime()) > 0)
+            {
+              LockSupport.parkNanos(wait);
+            }
+            
+            c.paused = false;
+            c.framer.resume(this);
+          }
+        }
+        
+      }
+      
+      catch( IOException ie )
+      {
+        
+        // Reset by the peer, or closed by the writer after a /bye or a failed write, which the writer journals.
+        if (!(ie instanceof ClosedChannelException))
+        {
+          record(Journal.READ_ERROR, c, ie);
+        }
+      }
+      
+      c.framer.release();
+      readBuffer.release();
+      
+      // After a /bye the writer closes the connection once the BYE is out.
+      if (c.closing)
+      {
+        return;
+      }
+      
+      try
+      {
+        
+        if (c.inside)
+        {
+          leaveRoom(c);
+        }
+        
+        forget(c);
+        
+        record(Journal.CLOSED, c, Journal.PEER, 0);
+        c.channel.close();
+        discard(c);
+        
+      }
+      
+      catch( IOException ie )
+      {
+        record(Journal.CLOSE_ERROR, c, ie);
+      }
+      
+      // Let the writer see the connection is gone.
+      LockSupport.unpark(c.writer);
+      
+    }
+    
+    // The writer, sends whatever is queued for the client in gathering writes, and parks while there's nothing. It
+    // writes through a new view of every buffer, as it can't keep views around like a loop does.
+    private void write()
+    {
+      
+      Client c = client;
+      BufferPool.Buffer[] taken = new BufferPool.Buffer[16];
+      ByteBuffer[] gather = new ByteBuffer[16];
+      int n = 0;
+      
+      try
+      {
+        
+        while (true)
+        {
+          // Cleared first, so anything queued from now on wakes us up again.
+          c.flushQueued.set(false);
+          
+          long bytes = 0;
+          BufferPool.Buffer b;
+          
+          n = 0;
+          
+          while (n < gather.length && bytes < batchBytes && (b = take(c)) != null)
+          {
+            taken[n] = b;
+            gather[n++] = b.duplicate();
+            bytes += b.length();
+          }
+          
+          if (n == 0)
+          {
+            
+            // Done after a /bye, an eviction or once the reader closed the connection, otherwise wait for enqueue()
+            // to unpark us.
+            if (c.closing || c.evicted.get() || !c.channel.isOpen())
+            {
+              break;
+            }
+            
+            LockSupport.park(this);
+            continue;
+          }
+          
+          // The channel is blocking, so this only returns once all of it has been written.
+          metrics.add(Metrics.BYTES_OUT, c.channel.write(gather, 0, n));
+          metrics.add(Metrics.MESSAGES_OUT, n);
+          
+          for (int i = 0; i < n; i++)
+          {
+            taken[i].release();
+          }
+          
+          Arrays.fill(taken, 0, n, null);
+          Arrays.fill(gather, 0, n, null);
+          n = 0;
+        }
+        
+        if (c.closing)
+        {
+          record(Journal.CLOSED, c, Journal.BYE, 0);
+          c.channel.close();
+        }
+        
+        // The reader then fails and takes it out of its room.
+        else if (c.evicted.get() && c.channel.isOpen())
+        {
+          record(Journal.EVICTED, c, 0, 0);
+          c.channel.close();
+        }
+        
+        discard(c);
+        
+      }
+      
+      catch( IOException ie )
+      {
+        
+        // The peer is gone. Closing the channel stops anyone queueing more and makes the reader clean up. If the
+        // reader closed it already there's nothing to report.
+        if (!(ie instanceof ClosedChannelException))
+        {
+          record(Journal.WRITE_ERROR, c, ie);
+        }
+        
+        for (int i = 0; i < n; i++)
+        {
+          taken[i].release();
+        }
+        
+        discard(c);
+        
+        try
+        {
+          c.channel.close();
+        }
+        
+        catch( IOException ie2 )
+        {
+          record(Journal.CLOSE_ERROR, c, ie2);
+        }
+      }
+      
+    }
+    
+    // Thread.ofVirtual().factory(), looked up by reflection so the server still builds and runs on JVMs without it.
+    static private ThreadFactory threadFactory()
+    {
+      
+      try
+      {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        ThreadFactory factory = (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        
+        virtual = true;
+        
+        return factory;
+      }
+      
+      catch( ReflectiveOperationException re )
+      {
+        // Platform threads with small stacks, there are two of them per connection.
+        return r -> new Thread(null, r, "connection", 256 * 1024);
+      }
+      
+    }
+    
+  }
+  
+  // The server's metrics as JMX and /stats show them, the counters and histograms of all the engines added up.
+  static private class Stats implements ChatServerMXBean
+  {
+    
+    public int getConnections()
+    {
+      return clients.size();
+    }
+    
+    public int getRooms()
+    {
+      return chatRooms.size();
+    }
+    
+    public Map<String, Long> getCounters()
+    {
+      
+      Map<String, Long> counters = new LinkedHashMap<>();
+      
+      for (int i = 0; i < Metrics.COUNTERS.length; i++)
+      {
+        long total = 0;
+        
+        for (Metrics m : allMetrics)
+        {
+          total += m.get(i);
+        }
+        
+        counters.put(Metrics.COUNTERS[i], total);
+      }
+      
+      return counters;
+      
+    }
+    
+    public Map<String, Long> getRates()
+    {
+      
+      Map<String, Long> rates = new LinkedHashMap<>();
+      
+      for (int i = 0; i < Metrics.COUNTERS.length; i++)
+      {
+        long total = 0;
+        
+        for (Metrics m : allMetrics)
+        {
+          total += m.rate(i);
+        }
+        
+        rates.put(Metrics.COUNTERS[i], total);
+      }
+      
+      return rates;
+      
+    }
+    
+    // Walks every outbound queue, which is fine for the odd look but not something to poll in a tight loop.
+    public long getQueuedBuffers()
+    {
+      
+      long total = 0;
+      
+      for (Client c : clients.values())
+      {
+        total += c.out.size() + c.ctl.size();
+      }
+      
+      return total;
+      
+    }
+    
+    public long getMaxQueuedBuffers()
+    {
+      
+      long max = 0;
+      
+      for (Client c : clients.values())
+      {
+        max = Math.max(max, c.out.size() + c.ctl.size());
+      }
+      
+      return max;
+      
+    }
+    
+    public long getQueuedBytes()
+    {
+      return queuedTotal.get();
+    }
+    
+    public Map<String, Long> getPool()
+    {
+      return pool.stats();
+    }
+    
+    public Map<String, Long> getCompression()
+    {
+      return compressor.stats();
+    }
+    
+    public Map<String, Long> getCluster()
+    {
+      return cluster != null ? cluster.stats() : new LinkedHashMap<>();
+    }
+    
+    public Map<String, Long> getFanOut()
+    {
+      
+      Map<String, Long> fanOut = new LinkedHashMap<>();
+      
+      if (lanes != null)
+      {
+        fanOut.put("threads", (long)lanes.threads());
+        fanOut.put("lanes", (long)lanes.size());
+        fanOut.put("pending", lanes.pending());
+      }
+      
+      return fanOut;
+      
+    }
+    
+    public Map<String, Long> getJournal()
+    {
+      return journal.stats();
+    }
+    
+    public Map<String, Long> getRoomLoad()
+    {
+      
+      Map<String, Long> load = new LinkedHashMap<>();
+      
+      for (EventLoop loop : loops)
+      {
+        load.put("loop."+loop.index, loop.load / 1000);
+      }
+      
+      return load;
+      
+    }
+    
+    public Map<String, Long> getLoopTime()
+    {
+      
+      long[] sum = new long[Metrics.Histogram.BUCKETS];
+      long max = 0;
+      
+      for (Metrics m : allMetrics)
+      {
+        max = Math.max(max, m.loopTime.addTo(sum));
+      }
+      
+      return percentiles(sum, max);
+      
+    }
+    
+    public Map<String, Long> getFanOutTime()
+    {
+      
+      long[] sum = new long[Metrics.Histogram.BUCKETS];
+      long max = 0;
+      
+      for (Metrics m : allMetrics)
+      {
+        max = Math.max(max, m.fanOutTime.addTo(sum));
+      }
+      
+      return percentiles(sum, max);
+      
+    }
+    
+    public Map<String, Long> getErrors()
+    {
+      
+      Map<String, Long> errors = new LinkedHashMap<>();
+      
+      for (int i = 0; i < Metrics.CAUSES.length; i++)
+      {
+        long total = 0;
+        
+        for (Metrics m : allMetrics)
+        {
+          total += m.errors(i);
+        }
+        
+        errors.put(Metrics.CAUSES[i], total);
+      }
+      
+      return errors;
+      
+    }
+    
+    public List<String> getBusiestRooms()
+    {
+      
+      ArrayList<long[]> figures = new ArrayList<>();
+      ArrayList<String> names = new ArrayList<>();
+      
+      // Read while the owners carry on, so a figure may be a moment old.
+      for (Room room : chatRooms.values())
+      {
+        EventLoop owner = room.owner;
+        
+        figures.add(new long[] { names.size(), room.users.size(), room.messages, room.fanOutNanos,
+          owner != null ? owner.index : -1 });
+        names.add(room.name);
+      }
+      
+      figures.sort((a, b) -> Long.compare(b[3], a[3]));
+      
+      List<String> busiest = new ArrayList<>();
+      
+      for (int i = 0; i < figures.size() && i < 10; i++)
+      {
+        long[] f = figures.get(i);
+        
+        busiest.add(names.get((int)f[0])+" members "+f[1]+" messages "+f[2]+" fanout.us "+f[3] / 1000
+          +(f[4] >= 0 ? " loop "+f[4] : ""));
+      }
+      
+      return busiest;
+      
+    }
+    
+    // Everything above as "name value..." lines, for /stats.
+    public List<String> report()
+    {
+      
+      List<String> lines = new ArrayList<>();
+      
+      lines.add("connections "+getConnections());
+      lines.add("rooms "+getRooms());
+      
+      Map<String, Long> rates = getRates();
+      
+      for (Map.Entry<String, Long> e : getCounters().entrySet())
+      {
+        lines.add(e.getKey()+" "+e.getValue()+" "+rates.get(e.getKey())+"/s");
+      }
+      
+      lines.add("queued "+getQueuedBuffers()+" max "+getMaxQueuedBuffers()+" bytes "+getQueuedBytes());
+      lines.add("pool "+text(getPool()));
+      lines.add("compress "+text(getCompression()));
+      
+      if (cluster != null)
+      {
+        lines.add("cluster "+text(getCluster()));
+      }
+      
+      lines.add("fanout "+text(getFanOut()));
+      lines.add("journal "+text(getJournal()));
+      lines.add("room.load.us "+text(getRoomLoad()));
+      lines.add("loop.us "+text(getLoopTime()));
+      lines.add("fanout.us "+text(getFanOutTime()));
+      lines.add("errors "+text(getErrors()));
+      
+      for (String room : getBusiestRooms())
+      {
+        lines.add("room "+room);
+      }
+      
+      return lines;
+      
+    }
+    
+    static private Map<String, Long> percentiles(long[] sum, long max)
+    {
+      
+      Map<String, Long> p = new LinkedHashMap<>();
+      
+      p.put("p50", Metrics.Histogram.percentile(sum, 0.5) / 1000);
+      p.put("p99", Metrics.Histogram.percentile(sum, 0.99) / 1000);
+      p.put("p99.9", Metrics.Histogram.percentile(sum, 0.999) / 1000);
+      p.put("max", max / 1000);
+      
+      return p;
+      
+    }
+    
+    static private String text(Map<String, Long> figures)
+    {
+      
+      StringBuilder sb = new StringBuilder();
+      
+      for (Map.Entry<String, Long> e : figures.entrySet())
+      {
+        sb.append(sb.length() > 0 ? " " : "").append(e.getKey()).append(' ').append(e.getValue());
+      }
+      
+      return sb.toString();
+      
+    }
+    
+  }
+  
+  // Takes connections off one listening socket, blocking in accept() so it takes all that are waiting one after the
+  // other, and hands those admitted to the event loops in turn, or to a thread of their own with the thread engine.
+  static private class Acceptor implements Runnable
+  {
+    
+    private final ServerSocketChannel listener;
+    
+    public Acceptor(ServerSocketChannel listener)
+    {
+      this.listener = listener;
+    }
+    
+    public void run()
+    {
+      
+      while (listener.isOpen())
+      {
+        
+        try
+        {
+          SocketChannel sc = listener.accept();
+          
+          if (!admit(sc, threadMetrics, -1))
+          {
+            continue;
+          }
+          
+          if (loops.length == 0)
+          {
+            new Connection(sc).start();
+          }
+          
+          else
+          {
+            loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length].register(sc);
+          }
+        }
+        
+        catch( IOException ie )
+        {
+          journal.record(Journal.ACCEPT_ERROR, -1, 0, ie);
+          
+          // Most likely out of file descriptors, give the connections on their way out a moment.
+          try
+          {
+            Thread.sleep(10);
+          }
+          
+          catch( InterruptedException ie2 )
+          {
+            return;
+          }
+        }
+        
+      }
+      
+    }
+    
+  }
+  
+  // Count in a new connection, unless the server is full or connections are coming in faster than chat.acceptRate.
+  // Those are told ERROR and closed right away.
+  static private boolean admit(SocketChannel sc, Metrics metrics, int loop) throws IOException
+  {
+    
+    boolean full = connections.incrementAndGet() > maxConnections && maxConnections > 0;
+    boolean admitted = !full;
+    
+    if (admitted && admissions != null)
+    {
+      synchronized (admissions)
+      {
+        admitted = admissions.take(System.nanoTime(), 1);
+      }
+    }
+    
+    if (admitted)
+    {
+      return true;
+    }
+    
+    connections.decrementAndGet();
+    metrics.add(Metrics.REJECTED, 1);
+    journal.record(Journal.REJECTED, loop, 0, sc);
+    
+    // A new socket's send buffer is empty, so this doesn't block, whatever mode it's in.
+    try
+    {
+      sc.write(ByteBuffer.wrap(rejection));
+    }
+    
+    catch( IOException ie )
+    {
+      // Gone already.
+    }
+    
+    sc.close();
+    
+    return false;
+    
+  }
+  
+  static private final byte[] rejection = "ERROR\n".getBytes(charset);
+  
+  // The sockets to listen on, chat.listeners of them bound to the same port if SO_REUSEPORT is there, one otherwise.
+  static private ServerSocketChannel[] listen(int port) throws IOException
+  {
+    
+    ServerSocketChannel first = ServerSocketChannel.open();
+    
+    int n = Math.max(1, listeners);
+    
+    if (n > 1 && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+    {
+      System.out.println( "SO_REUSEPORT isn't supported here, listening on a single socket" );
+      n = 1;
+    }
+    
+    ServerSocketChannel[] channels = new ServerSocketChannel[n];
+    
+    for (int i = 0; i < n; i++)
+    {
+      channels[i] = i == 0 ? first : ServerSocketChannel.open();
+      
+      if (n > 1)
+      {
+        channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      
+      channels[i].bind(new InetSocketAddress(port), backlog);
+    }
+    
+    return channels;
+    
+  }
+  
+  // An acceptor thread for each of the sockets.
+  static private void startAcceptors(ServerSocketChannel[] channels)
+  {
+    
+    for (int i = 0; i < channels.length; i++)
+    {
+      new Thread(new Acceptor(channels[i]), "acceptor-"+i).start();
+    }
+    
+  }
+  
+  static private final Stats stats = new Stats();
+  
+  static public void main( String args[] ) throws Exception
+  {
+    
+    // Parse port from command line
+    int port = Integer.parseInt( args[0] );
+    
+    // Optional number of worker event loops. Without it a single loop accepts and serves every connection.
+    int workers = args.length > 1 ? Integer.parseInt( args[1] ) : 0;
+    
+    if (historyLines > 0 && historyDir != null)
+    {
+      recoverHistory();
+    }
+    
+    journal.start();
+    
+    // The same figures /stats gives, for jconsole and friends.
+    java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean( stats, new javax.management.ObjectName( "nioChat:type=ChatServer" ) );
+    
+    try
+    {
+      // Instead of creating a ServerSocket, create ServerSocketChannels bound to the listening port.
+      ServerSocketChannel[] listening = listen(port);
+      
+      // The thread engine, the acceptors and what other nodes send count there.
+      if (engine.equals("threads") || workers > 0 || cluster != null)
+      {
+        allMetrics.add(threadMetrics);
+        
+        // Nobody else works out the shared metrics' rates.
+        Thread ticker = new Thread(() -> {
+          while (true)
+          {
+            try
+            {
+              Thread.sleep(1000);
+            }
+            
+            catch( InterruptedException ie )
+            {
+              return;
+            }
+            
+            threadMetrics.tick(System.nanoTime());
+          }
+        }, "metrics");
+        
+        ticker.setDaemon(true);
+        ticker.start();
+      }
+      
+      if (cluster != null)
+      {
+        cluster.start(new Remote());
+      }
+      
+      if (engine.equals("threads"))
+      {
+        System.out.println( "Listening on port "+port+" with a "+(Connection.virtual ? "virtual " : "")+"thread per connection" );
+        
+        startAcceptors(listening);
+        return;
+      }
+      
+      if (workers <= 0)
+      {
+        // Set them to non-blocking, so we can use select
+        for (ServerSocketChannel ssc : listening)
+        {
+          ssc.configureBlocking( false );
+        }
+        
+        System.out.println( "Listening on port "+port );
+        
+        loops = new EventLoop[] { new EventLoop(listening, 0) };
+        loops[0].run();
+        return;
+      }
+      
+      loops = new EventLoop[workers];
+      
+      for (int i = 0; i < workers; i++)
+      {
+        loops[i] = new EventLoop(new ServerSocketChannel[0], i);
+      }
+      
+      for (int i = 0; i < workers; i++)
+      {
+        Thread t = new Thread(loops[i], "loop-"+i);
+        t.start();
+      }
+      
+      System.out.println( "Listening on port "+port+" with "+workers+" event loops and "+listening.length+" acceptors" );
+      
+      startAcceptors(listening);
+    }
+    catch( IOException ie )
+    {
+      System.err.println( ie );
+    }
+  }
+  
+  // Load the rooms' last lines from the history log, and start logging again.
+  static private void recoverHistory() throws IOException
+  {
+    
+    historyLog = new HistoryLog(Paths.get(historyDir), Integer.getInteger("chat.historySegmentSize", 16 << 20),
+      Integer.getInteger("chat.historySegments", 16), Integer.getInteger("chat.historyQueue", 65536));
+    
+    // The rooms in the order they last had a line.
+    LinkedHashMap<String, History> recovered = new LinkedHashMap<>();
+    
+    historyLog.recover((room, line) -> {
+      BufferPool.Buffer b = encode(new byte[0], line, 0, line.limit());
+      History h = histories.computeIfAbsent(room, k -> new History());
+      
+      h.add(b);
+      b.release();
+      
+      recovered.remove(room);
+      recovered.put(room, h);
+    });
+    
+    // Nobody is in any room yet, those that had lines last are the ones kept.
+    synchronized (unused)
+    {
+      for (Map.Entry<String, History> e : recovered.entrySet())
+      {
+        History.shelve(e.getKey(), e.getValue());
+      }
+    }
+    
+    System.out.println( "History of "+histories.size()+" rooms recovered from "+historyDir );
+    
+    historyLog.start();
+    
+  }
+  
+  // Replies go on the control queue, ahead of room traffic and never dropped. If the client's budget is full they
+  // push out its oldest room traffic, and a client that has its whole budget in replies it didn't read is evicted.
+  static private void sendStatus(Client c, String status) throws IOException
+  {
+    
+    if (c == null || !c.open())
+    {
+      return;
+    }
+    
+    reply(c, status(c, status));
+    
+  }
+  
+  // A status line in the client's protocol, for a binary client the frame that stands for it.
+  static private byte[] status(Client c, String status)
+  {
+    return c.binary ? BinaryProtocol.frame(BinaryProtocol.status(status), new byte[0]) : status.getBytes(charset);
+  }
+  
+  // Queue a reply, the way sendStatus() describes.
+  static private void reply(Client c, byte[] bytes) throws IOException
+  {
+    
+    BufferPool.Buffer bb = encode(bytes);
+    BufferPool.Buffer sent = wire(c, bb);
+    
+    if (!makeRoom(c, sent.length()))
+    {
+      evict(c);
+    }
+    
+    push(c, c.ctl, sent);
+    bb.release();
+    
+  }
+  
+  // Take n tokens out of one of the client's budgets, or its room's. With chat.floodPolicy "pause" they are always
+  // taken, and when that leaves the budget short the client is paused until it has them back: nothing after this
+  // line is framed, or read, until then. Otherwise false if they aren't there.
+  static private boolean spend(Client c, TokenBucket budget, long n)
+  {
+    
+    long now = System.nanoTime();
+    
+    if (!floodPause)
+    {
+      return budget.take(now, n);
+    }
+    
+    long wait = budget.charge(now, n);
+    
+    if (wait > 0 && (!c.paused || now + wait - c.resume > 0))
+    {
+      c.paused = true;
+      c.resume = now + wait;
+      c.framer.stop();
+    }
+    
+    return true;
+    
+  }
+  
+  // Whether the input is over one of the client's budgets and was answered with ERROR. Never with a null budget.
+  static private boolean flooded(Client c, TokenBucket budget, long n) throws IOException
+  {
+    
+    if (budget == null || spend(c, budget, n))
+    {
+      return false;
+    }
+    
+    sendError(c, Metrics.FLOODED);
+    
+    return true;
+    
+  }
+  
+  // Reply ERROR, counting it under its cause in the metrics of the client's loop.
+  static private void sendError(Client c, int cause) throws IOException
+  {
+    
+    c.metrics.error(cause);
+    
+    // Binary clients are told why.
+    if (c.binary && c.open())
+    {
+      reply(c, BinaryProtocol.frame(BinaryProtocol.ERROR, new byte[] { (byte)cause }));
+      return;
+    }
+    
+    sendStatus(c, "ERROR\n");
+    
+  }
+  
+  // Admin only, one STATS line per figure followed by OK.
+  static private void sendStats(Client c) throws IOException
+  {
+    
+    boolean allowed = statsFrom.equals("all");
+    
+    if (statsFrom.equals("local") && c.channel.getRemoteAddress() instanceof InetSocketAddress)
+    {
+      allowed = ((InetSocketAddress)c.channel.getRemoteAddress()).getAddress().isLoopbackAddress();
+    }
+    
+    if (!allowed)
+    {
+      sendError(c, Metrics.DENIED);
+      return;
+    }
+    
+    if (c.binary)
+    {
+      ByteArrayOutputStream frames = new ByteArrayOutputStream();
+      
+      for (String line : stats.report())
+      {
+        frames.write(BinaryProtocol.frame(BinaryProtocol.STATS_LINE, line.getBytes(charset)));
+      }
+      
+      frames.write(BinaryProtocol.frame(BinaryProtocol.OK, new byte[0]));
+      
+      reply(c, frames.toByteArray());
+      return;
+    }
+    
+    StringBuilder sb = new StringBuilder();
+    
+    for (String line : stats.report())
+    {
+      sb.append("STATS ").append(line).append('\n');
+    }
+    
+    sb.append("OK\n");
+    
+    sendStatus(c, sb.toString());
+    
+  }
+  
+  // Encode outgoing text once into a pooled direct buffer. Recipients all get the same buffer queued, so a fan-out
+  // costs the same single copy whatever the size of the room, and the JDK doesn't copy it again into a temporary
+  // direct buffer on write. The caller holds a reference to it, to release() once it's queued.
+  static BufferPool.Buffer encode(String message)
+  {
+    return encode(message.getBytes(charset));
+  }
+  
+  static private BufferPool.Buffer encode(byte[] bytes)
+  {
+    
+    BufferPool.Buffer b = pool.take(bytes.length);
+    b.memory.put(bytes);
+    
+    return b.filled();
+    
+  }
+  
+  // Same as encode(String), for text that arrived as bytes: prefix followed by line[start, end) as it is.
+  static BufferPool.Buffer encode(byte[] prefix, ByteBuffer line, int start, int end)
+  {
+    
+    BufferPool.Buffer b = pool.take(prefix.length + end - start);
+    b.memory.put(prefix);
+    b.memory.put(prefix.length, line, start, end - start);
+    b.memory.position(prefix.length + end - start);
+    
+    return b.filled();
+    
+  }
+  
+  // A chat line for text clients: prefix, the text in line[start, end) and a LF.
+  static private BufferPool.Buffer encodeLine(byte[] prefix, ByteBuffer line, int start, int end)
+  {
+    
+    BufferPool.Buffer b = pool.take(prefix.length + end - start + 1);
+    b.memory.put(prefix);
+    b.memory.put(prefix.length, line, start, end - start);
+    b.memory.position(prefix.length + end - start);
+    b.memory.put((byte)'\n');
+    
+    return b.filled();
+    
+  }
+  
+  // The same for binary clients: a frame made of about, the opcode, id and nickname from Client.messageFrame or
+  // privateFrame, and the text as its body.
+  static BufferPool.Buffer encodeFrame(byte[] about, ByteBuffer line, int start, int end)
+  {
+    
+    int length = about.length + end - start;
+    
+    BufferPool.Buffer b = pool.take(2 + length);
+    b.memory.putShort((short)length);
+    b.memory.put(about);
+    b.memory.put(2 + about.length, line, start, end - start);
+    b.memory.position(2 + length);
+    
+    return b.filled();
+    
+  }
+  
+  // Queue room traffic for a client and have it sent, if the client's budget and the server's ceiling allow it. The
+  // queue takes a reference of its own, the caller's is left alone.
+  static private void enqueue(Client c, BufferPool.Buffer bb)
+  {
+    
+    if (c != null)
+    {
+      queue(c, wire(c, bb));
+    }
+    
+  }
+  
+  // What goes on the wire for bb: for a client that sent /compress its segment, compressed once however many clients
+  // it is queued for.
+  static private BufferPool.Buffer wire(Client c, BufferPool.Buffer bb)
+  {
+    return c.compressing ? compressor.compress(bb) : bb;
+  }
+  
+  // Queue the next segment of one of its room's streams for a member that compresses, unless it missed part of that
+  // stream, in which case it gets no more of it until the stream starts afresh. previous and last are the ids of the
+  // stream's segment before this one and of this one. Locked against the owner of the room it is moving to, which may
+  // be queueing a new stream's start for it at the same time.
+  static private void enqueueSegment(Client c, Room room, long previous, long last, BufferPool.Buffer segment)
+  {
+    
+    boolean fresh = Compressor.channel(segment) == Compressor.FRESH;
+    
+    synchronized (c)
+    {
+      boolean missed = !fresh && c.lastSegment != previous;
+      
+      if (missed || c.broken)
+      {
+        room.restart = true;
+      }
+      
+      if (missed)
+      {
+        c.metrics.addShared(Metrics.DROPPED_NEWEST, 1);
+        return;
+      }
+      
+      c.lastSegment = queue(c, segment) ? last : 0;
+    }
+    
+  }
+  
+  // Queue bb as it is, the way enqueue() describes. False if it was dropped instead.
+  static private boolean queue(Client c, BufferPool.Buffer bb)
+  {
+    
+    // The client is already gone (or going), there's nobody to write to.
+    if (!c.open() || c.evicted.get())
+    {
+      return false;
+    }
+    
+    int size = bb.length();
+    
+    // Checked without a lock, so the limits may be overshot by what other loops queue at the same moment.
+    if (queuedTotal.get() + size > outTotal && c.queued.get() > 0)
+    {
+      c.metrics.addShared(Metrics.DROPPED_GLOBAL, 1);
+      return false;
+    }
+    
+    if (c.queued.get() + size > outBytes)
+    {
+      
+      switch (slowPolicy)
+      {
+        case "disconnect":
+          
+          evict(c);
+          return false;
+        
+        case "drop-newest":
+          
+          c.metrics.addShared(Metrics.DROPPED_NEWEST, 1);
+          return false;
+        
+        default:
+          
+          // Whatever is left over is replies, which aren't ours to drop.
+          if (!makeRoom(c, size))
+          {
+            c.metrics.addShared(Metrics.DROPPED_NEWEST, 1);
+            return false;
+          }
+      }
+      
+    }
+    
+    push(c, c.out, bb);
+    
+    return true;
+    
+  }
+  
+  // Drop the client's oldest room traffic until size more bytes fit in its budget. False if they don't even then.
+  static private boolean makeRoom(Client c, int size)
+  {
+    
+    BufferPool.Buffer old;
+    
+    while (c.queued.get() + size > outBytes)
+    {
+      if ((old = drop(c)) == null)
+      {
+        return false;
+      }
+      
+      unqueued(c, old);
+      c.metrics.addShared(Metrics.DROPPED_OLDEST, 1);
+    }
+    
+    return true;
+    
+  }
+  
+  // Take the oldest room traffic off the client's queue, to drop it. Null if there is none.
+  static private BufferPool.Buffer drop(Client c)
+  {
+    
+    if (!c.compressing)
+    {
+      return c.out.poll();
+    }
+    
+    // What's queued after a segment of its room's stream is of no use without it. Locked against take(), so it
+    // can't have taken what follows before it knows.
+    synchronized (c)
+    {
+      BufferPool.Buffer old = c.out.poll();
+      
+      if (old != null && Compressor.channel(old) != Compressor.OWN)
+      {
+        c.broken = true;
+      }
+      
+      return old;
+    }
+    
+  }
+  
+  // Give up on a client that can't keep up: drop its room traffic and have whoever serves it send BYE and close it.
+  static private void evict(Client c)
+  {
+    
+    if (!c.evicted.compareAndSet(false, true))
+    {
+      return;
+    }
+    
+    c.metrics.addShared(Metrics.EVICTED, 1);
+    
+    BufferPool.Buffer old;
+    
+    while ((old = c.out.poll()) != null)
+    {
+      unqueued(c, old);
+    }
+    
+    // Its writer thread sends the BYE and closes the connection, a loop does it with leave() once it's told.
+    if (c.loop == null)
+    {
+      BufferPool.Buffer bye = encode(status(c, "BYE\n"));
+      
+      push(c, c.ctl, wire(c, bye));
+      bye.release();
+    }
+    
+    else if (!c.loop.inLoop())
+    {
+      c.loop.flushLater(c);
+    }
+    
+    // Even with OP_WRITE registered, as the selector may never get to it.
+    else
+    {
+      c.loop.batch(c, 0);
+    }
+    
+  }
+  
+  // Add bb to one of the client's queues and try to push it out right away, whatever the kernel doesn't take stays
+  // queued.
+  static private void push(Client c, ConcurrentLinkedQueue<BufferPool.Buffer> q, BufferPool.Buffer bb)
+  {
+    
+    int size = bb.length();
+    
+    c.queued.addAndGet(size);
+    queuedTotal.addAndGet(size);
+    
+    q.add(bb.retain());
+    
+    // It went away while we were at it, and whoever closed it may have emptied the queues already.
+    if (!c.open())
+    {
+      discard(c);
+      return;
+    }
+    
+    // A client with a thread of its own has a writer thread waiting for it, wake it unless somebody already did.
+    if (c.loop == null)
+    {
+      if (!c.flushQueued.getAndSet(true))
+      {
+        LockSupport.unpark(c.writer);
+      }
+    }
+    
+    // Only the client's own loop writes to its SocketChannel, anyone else asks it to.
+    else if (!c.loop.inLoop())
+    {
+      c.loop.flushLater(c);
+    }
+    
+    // If OP_WRITE is registered the selector will get to it, otherwise it goes out with the rest of this tick's.
+    else if (!c.writing)
+    {
+      c.loop.batch(c, size);
+    }
+    
+  }
+  
+  // The next buffer to write to the client, replies first, with the queue's reference to it. Null if there's
+  // nothing queued.
+  static private BufferPool.Buffer take(Client c)
+  {
+    
+    if (!c.compressing)
+    {
+      return poll(c);
+    }
+    
+    synchronized (c)
+    {
+      BufferPool.Buffer bb;
+      
+      // After a gap in its room's stream, the rest of it can't be inflated until it starts afresh.
+      while ((bb = poll(c)) != null && c.broken && Compressor.channel(bb) == Compressor.ROOM)
+      {
+        bb.release();
+        c.metrics.addShared(Metrics.DROPPED_OLDEST, 1);
+      }
+      
+      if (bb != null && Compressor.channel(bb) == Compressor.FRESH)
+      {
+        c.broken = false;
+      }
+      
+      return bb;
+    }
+    
+  }
+  
+  static private BufferPool.Buffer poll(Client c)
+  {
+    
+    BufferPool.Buffer bb = c.ctl.poll();
+    
+    if (bb == null)
+    {
+      bb = c.out.poll();
+    }
+    
+    if (bb != null)
+    {
+      int size = bb.length();
+      
+      c.queued.addAndGet(-size);
+      queuedTotal.addAndGet(-size);
+    }
+    
+    return bb;
+    
+  }
+  
+  // Account for a buffer dropped from the client's queues, and let go of it.
+  static private void unqueued(Client c, BufferPool.Buffer bb)
+  {
+    
+    c.queued.addAndGet(-bb.length());
+    queuedTotal.addAndGet(-bb.length());
+    
+    bb.release();
+    
+  }
+  
+  // Empty the queues of a client that is gone, so what was waiting stops counting against the ceiling and goes back
+  // to the pool.
+  static private void discard(Client c)
+  {
+    
+    BufferPool.Buffer bb;
+    
+    while ((bb = take(c)) != null)
+    {
+      bb.release();
+    }
+    
+  }
+  
+  // Let go of everything a closed connection of a loop still holds, by its loop only.
+  static private void dispose(Client c)
+  {
+    
+    discard(c);
+    
+    for (BufferPool.Buffer bb : c.unsent)
+    {
+      bb.release();
+    }
+    
+    c.unsent.clear();
+    c.offset = 0;
+    c.framer.release();
+    
+    // A /nick still waiting for the cluster gives up, and its loop frees the nickname.
+    if (c.claim != null)
+    {
+      c.claim.complete(Cluster.UNREACHABLE);
+    }
+    
+  }
+  
+  // Write as much of the client's outbound queue as the SocketChannel takes without blocking, as many buffers at a
+  // time as fit in one gathering write.
+  static private void flush(Client c)
+  {
+    
+    EventLoop loop = c.loop;
+    BufferPool.Buffer[] taken = loop.taken;
+    ByteBuffer[] gather = loop.gather;
+    
+    c.batchedBytes = 0;
+    
+    try
+    {
+      
+      while (true)
+      {
+        int n = 0;
+        long bytes = 0;
+        BufferPool.Buffer bb;
+        
+        loop.writes++;
+        
+        // What the last write left over goes first, it's already on its way.
+        while (n < gather.length && bytes < batchBytes && (bb = c.unsent.isEmpty() ? take(c) : c.unsent.poll()) != null)
+        {
+          int from = n == 0 ? c.offset : 0;
+          
+          taken[n] = bb;
+          gather[n++] = loop.view(bb, from);
+          bytes += bb.length() - from;
+        }
+        
+        c.offset = 0;
+        
+        if (n == 0)
+        {
+          break;
+        }
+        
+        c.metrics.add(Metrics.BYTES_OUT, c.channel.write(gather, 0, n));
+        
+        // Let go of the buffers that went out completely, and keep the rest in their order for the next write.
+        int done = 0;
+        
+        while (done < n && !gather[done].hasRemaining())
+        {
+          taken[done++].release();
+        }
+        
+        if (done < n)
+        {
+          c.offset = gather[done].position();
+        }
+        
+        for (int i = n - 1; i >= done; i--)
+        {
+          c.unsent.addFirst(taken[i]);
+        }
+        
+        c.metrics.add(Metrics.MESSAGES_OUT, done);
+        
+        Arrays.fill(taken, 0, n, null);
+        Arrays.fill(gather, 0, n, null);
+        
+        // Kernel buffer is full, wait for OP_WRITE before trying again.
+        if (done < n)
+        {
+          break;
+        }
+      }
+      
+    }
+    
+    catch( IOException ie )
+    {
+      // The peer is gone, drop whatever was pending. Reading from the channel will fail too and clean up after it.
+      record(Journal.WRITE_ERROR, c, ie);
+      
+      for (BufferPool.Buffer bb : taken)
+      {
+        if (bb != null)
+        {
+          bb.release();
+        }
+      }
+      
+      for (BufferPool.Buffer bb : c.unsent)
+      {
+        bb.release();
+      }
+      
+      c.unsent.clear();
+      c.offset = 0;
+      discard(c);
+      
+      Arrays.fill(taken, null);
+      Arrays.fill(gather, null);
+    }
+    
+    if (!c.key.isValid())
+    {
+      return;
+    }
+    
+    if (c.unsent.isEmpty() && c.queued.get() == 0)
+    {
+      
+      if (c.closing)
+      {
+        close(c);
+        return;
+      }
+      
+      // Nothing left to write, so stop asking the selector for OP_WRITE.
+      c.key.interestOps(c.held() ? 0 : SelectionKey.OP_READ);
+      c.writing = false;
+    }
+    
+    else
+    {
+      c.key.interestOps(c.closing || c.held() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      c.writing = true;
+    }
+    
+  }
+  
+  // Close a client that said /bye once its last bytes (the BYE itself) have been written.
+  static private void close(Client c)
+  {
+    
+    Socket s = c.channel.socket();
+    
+    c.key.cancel();
+    c.loop.timers.cancel(c.timer);
+    
+    dispose(c);
+    
+    record(Journal.CLOSED, c, Journal.BYE, 0);
+    
+    try
+    {
+      s.close();
+    }
+    
+    catch( IOException ie )
+    {
+      record(Journal.CLOSE_ERROR, c, ie);
+    }
+    
+  }
+  
+  static private void changeNick(Client c, String newNick) throws IOException
+  {
+    
+    // Claim the newNick in the nickname index, if some client (maybe c itself) already has it we fail.
+    if (nicks.putIfAbsent(newNick, c) != null)
+    {
+      // Nickname already in use!
+      sendError(c, Metrics.NICK_TAKEN);
+      return;
+    }
+    
+    if (cluster == null)
+    {
+      renamed(c, newNick, Cluster.GRANTED);
+      return;
+    }
+    
+    // And with the node that owns it, for the users of other nodes.
+    CompletableFuture<Integer> claim = cluster.claim(newNick);
+    
+    if (claim.isDone() || c.loop == null)
+    {
+      renamed(c, newNick, awaitClaim(claim));
+      return;
+    }
+    
+    // An event loop doesn't wait for another node. Nothing the client sent after this is framed, or read, until the
+    // answer is in or chat.clusterTimeout is up, and its loop then finishes the /nick, see EventLoop.claimed().
+    c.claim = claim;
+    c.claiming = newNick;
+    c.claimEnd = System.nanoTime() + cluster.timeout() * 1000000L;
+    c.framer.stop();
+    
+    claim.thenRun(() -> c.loop.answered(c));
+    
+  }
+  
+  // What the owner of a nickname said to a claim, waited for by a reader thread for up to chat.clusterTimeout.
+  static private int awaitClaim(CompletableFuture<Integer> claim)
+  {
+    
+    try
+    {
+      return claim.get(cluster.timeout(), TimeUnit.MILLISECONDS);
+    }
+    
+    catch( InterruptedException | ExecutionException | TimeoutException e )
+    {
+      // Unless the answer just came after all.
+      claim.complete(Cluster.UNREACHABLE);
+      
+      return claim.join();
+    }
+    
+  }
+  
+  // Finish a /nick, with what the cluster said to the claim on newNick, GRANTED without a cluster.
+  static private void renamed(Client c, String newNick, int claimed) throws IOException
+  {
+    
+    String oldNick = c.nick;
+    
+    if (cluster != null)
+    {
+      if (claimed != Cluster.GRANTED)
+      {
+        nicks.remove(newNick, c);
+        sendError(c, claimed == Cluster.TAKEN ? Metrics.NICK_TAKEN : Metrics.UNREACHABLE);
+        return;
+      }
+      
+      if (!c.init)
+      {
+        cluster.release(oldNick);
+      }
+      
+      cluster.user(c.id, c.init ? null : oldNick, newNick);
+    }
+    
+    // The old nickname is free for others now.
+    if (!c.init)
+    {
+      nicks.remove(oldNick, c);
+    }
+    
+    // Update value for object attribute.
+    c.nick = newNick;
+    c.messagePrefix = ("MESSAGE "+newNick+" ").getBytes(charset);
+    c.privatePrefix = ("PRIVATE "+newNick+" ").getBytes(charset);
+    c.messageFrame = BinaryProtocol.about(BinaryProtocol.MESSAGE_FROM, c.id, newNick);
+    c.privateFrame = BinaryProtocol.about(BinaryProtocol.PRIVATE_FROM, c.id, newNick);
+    
+    // If the client didn't have a nickname yet, now it does, hence init status = false
+    if (c.init)
+    {
+      c.init = false;
+      ids.put(c.id, c);
+    }
+    
+    else if (c.inside)
+    {
+      Room room = c.room;
+      
+      //Notify all the other users that share a chatroom with the Client c when it changes nickname
+      run(room, () -> notifyUsers(c, room, "NEWNICK "+oldNick+" "+newNick+"\n", BinaryProtocol.NEWNICK, oldNick, newNick));
+    }
+    
+    // Inform the client SocketChannel that the nickname change/registration has been correctly processed
+    sendStatus(c, "OK\n");
+    
+  }
+  
+  static private void joinRoom(Client c, String roomName) throws IOException
+  {
+    // If client is init, it means no nick has yet been assigned to it.
+    if (c.init)
+    {
+      // Init error.
+      sendError(c, Metrics.NO_NICK);
+      return;
+    }
+    
+    // If the client was previously in a chat room, then we ought to leave it.
+    else if (c.inside)
+    {
+      //Leave a chatroom here.
+      leaveRoom(c);
+    }
+    
+    Room room;
+    
+    while (true)
+    {
+      // What other users are in the chat room = roomName? If there are none, we create a new chat room and add it
+      // to chatRooms, owned by this client's loop.
+      room = chatRooms.computeIfAbsent(roomName, name -> new Room(name, c.loop));
+      
+      if (room.enter())
+      {
+        break;
+      }
+      
+      // The last user left and the room is on its way out, so make way for a new one.
+      chatRooms.remove(roomName, room);
+    }
+    
+    // Now the client is inside a chat room and it's c.room property is the room.
+    c.room = room;
+    c.inside = true;
+    
+    String nick = c.nick;
+    Room joined = room;
+    
+    Runnable join = () -> {
+      
+      // Notify other users in room that I have joined, those of other nodes too.
+      if (joined.users.size() > 0 || cluster != null)
+      {
+        notifyUsers(c, joined, "JOINED "+nick+"\n", BinaryProtocol.JOINED, nick, "");
+      }
+      
+      // Add the new Client to the room's users
+      joined.users.add(c);
+      joined.changed = true;
+      
+      if (cluster != null)
+      {
+        cluster.joined(joined.name);
+      }
+      
+      // It can only pick up the room's streams where they start afresh.
+      if (c.compressing)
+      {
+        joined.restart = true;
+      }
+      
+      if (joined.history != null)
+      {
+        joined.history.replay(c);
+      }
+      
+    };
+    
+    // Report back to client that it joined a chat room sucessfully. What was said there lately follows, once the
+    // room's owner gets to the join: history is replayed as the joiner becomes a member, so nothing sent to the room
+    // meanwhile is missed or repeated.
+    if (room.owner != null)
+    {
+      sendStatus(c, "OK\n");
+      run(room, join);
+      return;
+    }
+    
+    // The thread engine joins right here, holding the room's lock from before the OK on, or another thread's join or
+    // line could get in between the client hearing OK and becoming a member.
+    synchronized (room)
+    {
+      sendStatus(c, "OK\n");
+      run(room, join);
+    }
+    
+  }
+  
+  static private void leaveRoom(Client c) throws IOException
+  {
+    // If there are no rooms to leave, then we return an error.
+    if (!c.inside || c.init)
+    {
+      // We are not in a chat room, so there's no leaving it in the first place.
+      sendError(c, Metrics.NOT_IN_ROOM);
+      return;
+    }
+    
+    // Get the room with all the connected clients that have the same c.room.
+    Room room = c.room;
+    String nick = c.nick;
+    
+    // Client is no longer in a chat room.
+    c.inside = false;
+    c.room = null;
+    
+    run(room, () -> {
+      
+      // Remove the Client from c.room
+      room.users.remove(c);
+      room.changed = true;
+      
+      if (cluster != null)
+      {
+        cluster.left(room.name);
+      }
+      
+      // If there are other users in room, here or on other nodes, then we notify them someone left.
+      if (room.users.size() > 0 || cluster != null)
+      {
+        notifyUsers(c, room, "LEFT "+nick+"\n", BinaryProtocol.LEFT, nick, "");
+      }
+      
+      // If that was the last member, and nobody is joining, then we remove it from chatRooms. A joiner that
+      // already holds this room will notice and create a new one.
+      if (room.exit())
+      {
+        chatRooms.remove(room.name, room);
+        room.close();
+      }
+      
+    });
+    
+    // If all goes well, client gets an OK status message to be sure it left the chat room.
+    sendStatus(c, "OK\n");
+  }
+  
+  // When a message is to be sent to all the users in a chat room, except the user itself, hence passing Client me.
+  // Binary users get it as a frame of opcode op about name, with body. Run by the room's owner.
+  static private void notifyUsers(Client me, Room room, String message, int op, String name, String body)
+  {
+    
+    notifyUsers(me, me.id, room, message, op, name, body);
+    
+    if (cluster != null)
+    {
+      cluster.notice(room.name, op, me.id, name, body);
+    }
+    
+  }
+  
+  // The same for user id, on this node (me) or another (me null).
+  static private void notifyUsers(Client me, int id, Room room, String message, int op, String name, String body)
+  {
+    
+    if (parallel(room))
+    {
+      Client[][] chunks = chunks(room);
+      Broadcast b = new Broadcast(room, me);
+      
+      if (room.speaks[0])
+      {
+        b.plain[0] = encode(message);
+      }
+      
+      if (room.speaks[1])
+      {
+        byte[] bytes = body.getBytes(charset);
+        
+        b.plain[1] = encodeFrame(BinaryProtocol.about(op, id, name), ByteBuffer.wrap(bytes), 0, bytes.length);
+      }
+      
+      broadcast(room, chunks, b);
+      return;
+    }
+    
+    // Encoded once per protocol, and only if someone speaks it, every user gets the same bytes queued.
+    BufferPool.Buffer text = null;
+    BufferPool.Buffer frame = null;
+    
+    for (Client u : room.users)
+    {
+      // Itself, and members whose leave the owner hasn't got to yet.
+      if (u == me || u.room != room)
+      {
+        continue;
+      }
+      
+      if (u.binary)
+      {
+        if (frame == null)
+        {
+          byte[] bytes = body.getBytes(charset);
+          
+          frame = encodeFrame(BinaryProtocol.about(op, id, name), ByteBuffer.wrap(bytes), 0, bytes.length);
+        }
+        
+        enqueue(u, frame);
+      }
+      
+      else
+      {
+        if (text == null)
+        {
+          text = encode(message);
+        }
+        
+        enqueue(u, text);
+      }
+    }
+    
+    release(text);
+    release(frame);
+    
+  }
+  
+  static private void release(BufferPool.Buffer bb)
+  {
+    
+    if (bb != null)
+    {
+      bb.release();
+    }
+    
+  }
+  
+  // Record what happened to c in the journal, with the loop serving it.
+  static private void record(int type, Client c, long a, long b)
+  {
+    journal.record(type, c.loop != null ? c.loop.index : -1, c.id, a, b);
+  }
+  
+  static private void record(int type, Client c, IOException ie)
+  {
+    journal.record(type, c.loop != null ? c.loop.index : -1, c.id, ie);
+  }
+  
+  // Drop a client from the clients map and from the nickname index, so its nickname can be taken again.
+  static private void forget(Client c)
+  {
+    
+    if (clients.remove(c.channel) != null)
+    {
+      connections.decrementAndGet();
+    }
+    
+    c.metrics.add(Metrics.CLOSED, 1);
+    
+    if (c.loop != null)
+    {
+      c.loop.timers.cancel(c.timer);
+    }
+    
+    if (!c.init)
+    {
+      nicks.remove(c.nick, c);
+      ids.remove(c.id);
+      
+      if (cluster != null)
+      {
+        cluster.release(c.nick);
+        cluster.user(c.id, c.nick, null);
+      }
+    }
+    
+  }
+  
+  // Disconnect client from the server, make it go poof!
+  static private void leave(Client c) throws IOException
+  {
+    
+    // Sending BYE status message to the SocketChannel to be removed from HashMap clients
+    sendStatus(c, "BYE\n");
+    forget(c);
+    
+    // Stop reading from it, the socket is closed by flush() (or the writer thread) as soon as the BYE has been
+    // written.
+    c.closing = true;
+    
+    if (c.loop == null)
+    {
+      LockSupport.unpark(c.writer);
+    }
+    
+    else
+    {
+      flush(c);
+      
+      // Unless that was the end of it, don't wait forever for a peer that may be gone.
+      if (c.key.isValid())
       {
-        sendToRoom(sc, c, "MESSAGE "+c.nick+" "+message);
+        c.loop.timers.schedule(c.timer, System.nanoTime() + byeTimeout);
       }
     }
     
-    return true;
   }
   
-  static private void sendStatus(SocketChannel sc, String status) throws IOException
+  // Forward a chat line, the text in line[start, end) without its LF, to everyone in the client's room.
+  static private void sendToRoom(Client c, ByteBuffer line, int start, int end) throws IOException
   {
     
-    ByteBuffer bb = ByteBuffer.wrap(status.getBytes());
-    sc.write(bb);
+    // If the user is not in a room or does not have a nickname, we cannot send anything to any room.
+    if (!c.inside || c.init)
+    {
+      sendError(c, Metrics.NOT_IN_ROOM);
+      return;
+    }
     
-  }
-  
-  static private void changeNick(SocketChannel sc, Client c, String newNick) throws IOException
-  {
+    Room room = c.room;
     
-    // Iterate over clients HashMap to make sure no other client has the same value for property nick as the newNick
-    for (Map.Entry<SocketChannel, Client> entry : clients.entrySet())
+    if (room.lineBudget != null)
     {
+      boolean spent;
       
-      String u = entry.getValue().nick;
+      synchronized (room.lineBudget)
+      {
+        spent = spend(c, room.lineBudget, 1);
+      }
       
-      if (newNick.compareTo(u) == 0)
+      if (!spent)
       {
-        // Nickname already in use!
-        sendStatus(sc, "ERROR\n");
+        sendError(c, Metrics.FLOODED);
         return;
       }
     }
     
-    // If the client didn't have a nickname yet, now it does, hence init status = false
-    if (c.init)
+    // The text is copied out of the read buffer once, as the line text clients get, which is also what history
+    // keeps. Binary members get a frame made from it.
+    if (!post(room, encodeLine(c.messagePrefix, line, start, end), c.messagePrefix.length, c.messageFrame))
     {
-      c.init = false;
-      
+      c.metrics.add(Metrics.DROPPED_ROOM, 1);
+      sendError(c, Metrics.ROOM_BUSY);
+      return;
     }
     
-    else if (c.inside)
+    // Once to each other node with members in the room. Lines of different users may get there in another order than
+    // they went out here.
+    if (cluster != null)
     {
-      //Notify all the other users that share a chatroom with the Client c when it changes nickname
-      ArrayList<SocketChannel> usersInRoom = chatRooms.get(c.room);
-      
-      notifyUsers(sc, usersInRoom, "NEWNICK "+c.nick+" "+newNick+"\n");
+      cluster.message(room.name, c.id, c.nick, line, start, end);
     }
     
-    // Update value for object attribute.
-    c.nick = newNick;
+  }
+  
+  // Hand a chat line to the room's owner to deliver. payload is the text line, with a reference that goes with it,
+  // its text starts at text and about starts the frame of it. False if the room has too many lines waiting already.
+  static private boolean post(Room room, BufferPool.Buffer payload, int text, byte[] about)
+  {
     
-    // Replace HashMap entry for Client c - to make sure DeepCopy is performed(?)
-    clients.replace(sc, c);
+    if (room.lines.incrementAndGet() > roomQueue)
+    {
+      room.lines.decrementAndGet();
+      payload.release();
+      return false;
+    }
     
-    // Inform the client SocketChannel that the nickname change/registration has been correctly processed
-    sendStatus(sc, "OK\n");
+    run(room, () -> {
+      
+      room.lines.decrementAndGet();
+      
+      deliver(room, payload, text, about);
+      payload.release();
+      
+    });
+    
+    return true;
     
   }
   
-  static private void joinRoom(SocketChannel sc, Client c, String roomName) throws IOException
+  // Run task on the room's owner, in the order things were handed to the room: right here if this is the owner's
+  // thread and the room has nothing else waiting, otherwise on the owner's next wake up. The thread engine has no
+  // owners, its threads take turns holding the room's lock instead.
+  static private void run(Room room, Runnable task)
   {
-    // If client is init, it means no nick has yet been assigned to it.
-    if (c.init)
+    
+    if (room.owner == null)
     {
-      // Init error.
-      sendStatus(sc, "ERROR\n");
+      synchronized (room)
+      {
+        task.run();
+      }
+      
       return;
     }
     
-    // If the client was previously in a chat room, then we ought to leave it.
-    else if (c.inside)
+    room.inbox.add(task);
+    schedule(room);
+    
+  }
+  
+  // Have the room's owner run what's in its inbox, unless it's already going to.
+  static private void schedule(Room room)
+  {
+    
+    if (room.inbox.isEmpty() || !room.scheduled.compareAndSet(false, true))
     {
-      //Leave a chatroom here.
-      leaveRoom(sc, c);
+      return;
     }
     
-    // What other users are in the chat room = roomName?
-    ArrayList<SocketChannel> usersInRoom = chatRooms.get(roomName);
+    EventLoop owner = room.owner;
     
-    // If there are none, we create a new chat room and add it to chatRooms HashMap
-    if (usersInRoom == null)
+    if (owner.inLoop())
     {
-      usersInRoom = new ArrayList<>();
-      chatRooms.put(roomName, usersInRoom);
+      owner.run(room);
     }
     
-    else if (usersInRoom.size() > 0)
+    else
     {
-      // Notify other users in room that I have joined.
-      notifyUsers(sc, usersInRoom, "JOINED "+c.nick+"\n");
+      owner.runLater(room);
     }
     
-    // Add the new SocketChannel to the ArrayList usersInRoom
-    usersInRoom.add(sc);
+  }
+  
+  // Queue a chat line for every member of room, and keep it in the room's history. Run by the room's owner. payload
+  // is the text line, the text of which starts at text, and about starts the frame binary members get.
+  static private void deliver(Room room, BufferPool.Buffer payload, int text, byte[] about)
+  {
+    
+    long started = System.nanoTime();
     
-    // Now the client is inside a chat room and it's c.room property is roomName
-    c.room = roomName;
-    c.inside = true;
+    // Where the owner counts, a loop's own metrics or those of the thread engine.
+    Metrics metrics = room.owner != null ? room.owner.metrics : threadMetrics;
+    
+    // The message is encoded once per protocol, no matter how many users are in the room.
+    BufferPool.Buffer frame = null;
+    
+    // And deflated once per protocol into the room's streams, for those that compress.
+    BufferPool.Buffer payloadSegment = null;
+    BufferPool.Buffer frameSegment = null;
+    
+    if (room.restart)
+    {
+      room.restart = false;
+      
+      for (int form = 0; form < room.streams.length; form++)
+      {
+        if (room.streams[form] != null)
+        {
+          room.streams[form].reset();
+          room.last[form] = 0;
+        }
+      }
+    }
+    
+    // A big room only has it encoded here, and the lanes queue it.
+    if (parallel(room))
+    {
+      Client[][] chunks = chunks(room);
+      Broadcast b = new Broadcast(room, null);
+      
+      b.plain[0] = payload.retain();
+      
+      if (room.speaks[1])
+      {
+        b.plain[1] = encodeFrame(about, payload.memory, text, payload.length() - 1);
+      }
+      
+      for (int form = 0; form < 2; form++)
+      {
+        if (room.compress[form])
+        {
+          b.segments[form] = segment(room, form, b.plain[form]);
+          b.previous[form] = room.previous[form];
+          b.last[form] = room.last[form];
+        }
+      }
+      
+      broadcast(room, chunks, b);
+      metrics.add(Metrics.FANOUT_PARALLEL, 1);
+    }
+    
+    else
+    {
+      // For all the Clients in the chat room, we queue the payload for their corresponding SocketChannels.
+      for (Client usr : room.users)
+      {
+        // It left, the owner just hasn't got to that yet.
+        if (usr.room != room)
+        {
+          continue;
+        }
+        
+        if (usr.binary)
+        {
+          if (frame == null)
+          {
+            frame = encodeFrame(about, payload.memory, text, payload.length() - 1);
+          }
+          
+          if (!usr.compressing)
+          {
+            enqueue(usr, frame);
+            continue;
+          }
+          
+          if (frameSegment == null)
+          {
+            frameSegment = segment(room, 1, frame);
+          }
+          
+          enqueueSegment(usr, room, room.previous[1], room.last[1], frameSegment);
+        }
+        
+        else
+        {
+          if (!usr.compressing)
+          {
+            enqueue(usr, payload);
+            continue;
+          }
+          
+          if (payloadSegment == null)
+          {
+            payloadSegment = segment(room, 0, payload);
+          }
+          
+          enqueueSegment(usr, room, room.previous[0], room.last[0], payloadSegment);
+        }
+      }
+    }
+    
+    if (room.history != null)
+    {
+      room.history.add(payload);
+      
+      // The log's writer thread puts it on disk, if it can't keep up the line is only kept in memory.
+      if (historyLog != null && !historyLog.append(room.name, payload))
+      {
+        metrics.add(Metrics.HISTORY_DROPPED, 1);
+      }
+    }
+    
+    long took = System.nanoTime() - started;
     
-    // Report back to client that it joined a chat room sucessfully.
-    sendStatus(sc, "OK\n");
+    room.messages++;
+    room.fanOutNanos += took;
+    
+    metrics.fanOutTime.record(took);
+    
+    release(frame);
+    release(payloadSegment);
+    release(frameSegment);
     
   }
   
-  static private void leaveRoom(SocketChannel sc, Client c) throws IOException
+  // The next segment of one of the room's streams, 0 for text and 1 for binary: plain deflated into it, with one
+  // reference to it. The stream is made if there isn't one yet. Run by the room's owner.
+  static private BufferPool.Buffer segment(Room room, int form, BufferPool.Buffer plain)
   {
-    // If there are no rooms to leave, then we return an error.
-    if (!c.inside || c.init)
+    
+    if (room.streams[form] == null)
     {
-      // We are not in a chat room, so there's no leaving it in the first place.
-      sendStatus(sc, "ERROR\n");
-      return;
+      room.streams[form] = compressor.stream();
+      room.last[form] = 0;
     }
     
-    // Get all the connected clients (SocketChannel) that have the same c.room.
-    ArrayList<SocketChannel> users = chatRooms.get(c.room);
+    int channel = room.last[form] == 0 ? Compressor.FRESH : Compressor.ROOM;
+    BufferPool.Buffer segment = compressor.deflate(room.streams[form], plain, channel);
     
-    // Remove the Client from c.room (ArrayList<SocketChannel> users)
-    users.remove(sc);
+    room.previous[form] = room.last[form];
+    room.last[form] = segmentIds.incrementAndGet();
     
-    // Client is no longer in a chat room.
-    c.inside = false;
-    c.room = "";
+    return segment;
+    
+  }
+  
+  // True if the lanes queue what is sent to the room: it's big, or they still have some of its traffic to queue.
+  static private boolean parallel(Room room)
+  {
+    return lanes != null && (room.users.size() >= fanOutParallel || room.fanning.get() > 0);
+  }
+  
+  // The room's members split by lane, and which protocols they speak and compress, worked out again after they
+  // changed. Run by the room's owner.
+  static private Client[][] chunks(Room room)
+  {
     
-    // If there are other users in room, then we notify them someone left.
-    if (users.size() > 0)
+    if (!room.changed)
     {
-      notifyUsers(sc, users, "LEFT "+c.nick+"\n");
+      return room.chunks;
     }
     
-    // If the room is now empty, then we remove it from the chatRooms HashMap...
-    else
+    int[] sizes = new int[lanes.size()];
+    
+    for (Client u : room.users)
     {
-      chatRooms.remove(c.room);
+      sizes[u.lane % sizes.length]++;
     }
     
-    // If all goes well, client gets an OK status message to be sure it left the chat room.
-    sendStatus(sc, "OK\n");
-  }
-  
-  // When a message is to be sent to all the users in a chat room, except the user itself, hence passing SocketChannel me.
-  static private void notifyUsers(SocketChannel me, ArrayList<SocketChannel> users, String message) throws IOException
-  {
+    Client[][] chunks = new Client[sizes.length][];
     
-    for (SocketChannel u : users)
+    for (int i = 0; i < sizes.length; i++)
     {
-      if (!u.equals(me))
-      {
-        ByteBuffer bb = ByteBuffer.wrap(message.getBytes());
-        
-        u.write(bb);
-      }
+      chunks[i] = new Client[sizes[i]];
+      sizes[i] = 0;
+    }
+    
+    Arrays.fill(room.speaks, false);
+    Arrays.fill(room.compress, false);
+    
+    for (Client u : room.users)
+    {
+      int lane = u.lane % sizes.length;
+      int form = u.binary ? 1 : 0;
+      
+      chunks[lane][sizes[lane]++] = u;
+      
+      room.speaks[form] = true;
+      room.compress[form] |= u.compressing;
     }
     
+    room.chunks = chunks;
+    room.changed = false;
+    
+    return chunks;
+    
   }
   
-  // Disconnect client from the server, make it go poof!
-  static private void leave(SocketChannel sc, Client c) throws IOException
+  // One line or notice for a room the lanes queue for, already encoded by the room's owner. Each lane queues it for
+  // its chunk of the members, the last one done lets go of the buffers.
+  static private class Broadcast
   {
     
-    SocketChannel toRemove = null;
+    public final Room room;
+    public final Client me;
+    
+    // What text (0) and binary (1) members get, and for those that compress, the segment of the room's stream with
+    // the ids of the stream's segment before it and of itself. A line's segments are null if nobody compresses, a
+    // notice has none.
+    public final BufferPool.Buffer[] plain = new BufferPool.Buffer[2];
+    public final BufferPool.Buffer[] segments = new BufferPool.Buffer[2];
+    public final long[] previous = new long[2];
+    public final long[] last = new long[2];
+    
+    // Chunks not done yet.
+    public final AtomicInteger remaining = new AtomicInteger();
     
-    // Iterating over clients array so we can find which SocketChannel to close.
+    public Broadcast(Room room, Client me)
+    {
+      this.room = room;
+      this.me = me;
+    }
     
-    for (Map.Entry<SocketChannel, Client> entry : clients.entrySet())
+    // Queue it for the members in chunk, except the one it's from and those that left. Run by a lane. A chunk that
+    // fails still counts as done, or the buffers would never go back and the room would stay on the lanes for good.
+    public void to(Client[] chunk)
     {
       
-      SocketChannel chClient = entry.getKey();
+      try
+      {
+        for (Client usr : chunk)
+        {
+          if (usr == me || usr.room != room)
+          {
+            continue;
+          }
+          
+          int form = usr.binary ? 1 : 0;
+          
+          if (usr.compressing && segments[form] != null)
+          {
+            enqueueSegment(usr, room, previous[form], last[form], segments[form]);
+          }
+          
+          else
+          {
+            enqueue(usr, plain[form]);
+          }
+        }
+      }
       
-      if (chClient.equals(sc))
+      finally
       {
-        toRemove = sc;
-        break;
+        if (remaining.decrementAndGet() == 0)
+        {
+          done();
+        }
       }
       
     }
     
-    // Getting the attached Socket to the SocketChannel so it can be closed.
-    Socket s = toRemove.socket();
-    
-    System.out.println( "Closing connection to "+s );
-    
-    // Sending BYE status message to the SocketChannel to be removed from HashMap clients
-    sendStatus(toRemove, "BYE\n");
-    clients.remove(toRemove);
-    
-    s.close();
+    public void done()
+    {
+      
+      for (int form = 0; form < 2; form++)
+      {
+        release(plain[form]);
+        release(segments[form]);
+      }
+      
+      room.fanning.decrementAndGet();
+      
+    }
     
   }
   
-  static private void sendToRoom(SocketChannel sc, Client c, String message) throws IOException
+  // Hand b to the lanes, a chunk of the room's members to each. A member is always in the same lane, which runs what
+  // it is given in order, so every member gets the room's lines in the order they were sent.
+  static private void broadcast(Room room, Client[][] chunks, Broadcast b)
   {
     
-    // If the user is not in a room or does not have a nickname, we cannot send anything to any room.
-    if (!c.inside || c.init)
+    int tasks = 0;
+    
+    for (Client[] chunk : chunks)
     {
-      sendStatus(sc, "ERROR\n");
-      return;
+      if (chunk.length > 0)
+      {
+        tasks++;
+      }
     }
     
-    ArrayList<SocketChannel> usersInRoom = chatRooms.get(c.room);
+    room.fanning.incrementAndGet();
+    b.remaining.set(tasks);
     
-    // For all the SocketChannels attached to the chat room, we write to their corresponding SocketChannels.
+    if (tasks == 0)
+    {
+      b.done();
+      return;
+    }
     
-    for (SocketChannel usr : usersInRoom)
+    for (int i = 0; i < chunks.length; i++)
     {
-      ByteBuffer bb = ByteBuffer.wrap(message.getBytes());
-      usr.write(bb);
+      Client[] chunk = chunks[i];
+      
+      if (chunk.length > 0)
+      {
+        lanes.submit(i, () -> b.to(chunk));
+      }
     }
     
   }
   
-  static private void sendPriv(SocketChannel sc, Client c, String to, String message) throws IOException
+  // Send the text in line[start, end), without its LF, to the user that goes by nick, here or on another node.
+  static private void sendPriv(Client c, String nick, ByteBuffer line, int start, int end) throws IOException
+  {
+    
+    Client t = nicks.get(nick);
+    
+    sendPriv(c, t, t == null && cluster != null ? cluster.find(nick) : 0, line, start, end);
+    
+  }
+  
+  // The same for the user with the given id.
+  static private void sendPriv(Client c, int id, ByteBuffer line, int start, int end) throws IOException
+  {
+    sendPriv(c, ids.get(id), id, line, start, end);
+  }
+  
+  // To client t, or if it's null to user id of another node. Neither if id is 0 too.
+  static private void sendPriv(Client c, Client t, int id, ByteBuffer line, int start, int end) throws IOException
   {
     if (c.init)
     {
       //ERROR init, user does not have a nickname.
-      sendStatus(sc, "ERROR\n");
+      sendError(c, Metrics.NO_NICK);
       return;
     }
     
-    SocketChannel toSocket = null;
-    
-    // Iterate over clients HashMap to find the corresponding SocketChannel to a Client such that c.nick == to.
-    for(Map.Entry<SocketChannel, Client> entry : clients.entrySet())
+    // As far as this node knows the user is there, it may have left by the time the message arrives.
+    if (t == null && id != 0 && cluster != null && cluster.priv(id, c.id, c.nick, line, start, end))
     {
-      Client t = entry.getValue();
-      
-      if (t.nick.compareTo(to) == 0)
-      {
-        toSocket = entry.getKey();
-      }
-      
+      sendStatus(c, "OK\n");
+      return;
     }
     
-    if (toSocket != null)
+    if (t != null)
     {
       
       // Compose the output to the corresponding SocketChannel
-      String query = "PRIVATE "+c.nick+" "+message;
+      BufferPool.Buffer payload = t.binary ? encodeFrame(c.privateFrame, line, start, end) : encodeLine(c.privatePrefix, line, start, end);
       
-      ByteBuffer bb = ByteBuffer.wrap(query.getBytes());
-      toSocket.write(bb);
+      enqueue(t, payload);
+      payload.release();
       
       // Send the confirmation to the author of the message.
-      sendStatus(sc, "OK\n");
+      sendStatus(c, "OK\n");
       
       return;
     }
     
     // If we did not return from the function yet, then something has gone wrong and we have to report an error to the sender.
-    sendStatus(sc, "ERROR\n");
+    sendError(c, Metrics.NO_SUCH_NICK);
     
   }
   
   // Reserved for debugging, sends message to all connected sockets, regardless of the chat room they're in.
-  static private void sendMessage(SocketChannel sc, Client c, String message) throws IOException
+  static private void sendMessage(Client c, String message) throws IOException
   {
-  
+    
+    BufferPool.Buffer payload = encode(message);
+    
     for(Map.Entry<SocketChannel, Client> entry : clients.entrySet())
     {
-      SocketChannel sock = entry.getKey();
+      enqueue(entry.getValue(), payload);
+    }
+    
+    payload.release();
+    
+  }
+  
+  // What the other nodes of the cluster send, for this node's users.
+  static private class Remote implements Cluster.Handler
+  {
+    
+    public void message(String name, int id, String nick, byte[] text)
+    {
+      
+      Room room = chatRooms.get(name);
+      
+      if (room != null)
+      {
+        byte[] prefix = ("MESSAGE "+nick+" ").getBytes(charset);
+        
+        byte[] about = BinaryProtocol.about(BinaryProtocol.MESSAGE_FROM, id, nick);
+        
+        if (!post(room, encodeLine(prefix, ByteBuffer.wrap(text), 0, text.length), prefix.length, about))
+        {
+          threadMetrics.add(Metrics.DROPPED_ROOM, 1);
+        }
+      }
+      
+    }
+    
+    public void notice(String name, int op, int id, String nick, String body)
+    {
+      
+      Room room = chatRooms.get(name);
+      
+      if (room == null)
+      {
+        return;
+      }
+      
+      String message;
+      
+      switch (op)
+      {
+        case BinaryProtocol.JOINED:
+          message = "JOINED "+nick+"\n";
+          break;
+        
+        case BinaryProtocol.LEFT:
+          message = "LEFT "+nick+"\n";
+          break;
+        
+        case BinaryProtocol.NEWNICK:
+          message = "NEWNICK "+nick+" "+body+"\n";
+          break;
+        
+        default:
+          return;
+      }
+      
+      run(room, () -> notifyUsers(null, id, room, message, op, nick, body));
+      
+    }
+    
+    public void priv(int to, int id, String nick, byte[] text)
+    {
+      
+      Client t = ids.get(to);
+      
+      if (t == null)
+      {
+        return;
+      }
+      
+      ByteBuffer line = ByteBuffer.wrap(text);
+      
+      BufferPool.Buffer payload = t.binary
+        ? encodeFrame(BinaryProtocol.about(BinaryProtocol.PRIVATE_FROM, id, nick), line, 0, text.length)
+        : encodeLine(("PRIVATE "+nick+" ").getBytes(charset), line, 0, text.length);
       
-      ByteBuffer bb = ByteBuffer.wrap(message.getBytes());
+      enqueue(t, payload);
+      payload.release();
       
-      sock.write(bb);
     }
     
   }
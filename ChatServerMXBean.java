@@ -0,0 +1,64 @@
+import java.util.*;
+
+// What ChatServer reports about itself over JMX, under the name "nioChat:type=ChatServer". Counters are totals since
+// start, rates are per second over the last whole second, times are in microseconds.
+public interface ChatServerMXBean
+{
+  
+  int getConnections();
+  
+  int getRooms();
+  
+  // accepted, closed, lines.in, bytes.in, messages.out, bytes.out, history.dropped (lines the history log
+  // missed), timed.out (connections closed by a timeout), dropped.oldest and dropped.newest (chat lines a slow
+  // client's budget had no room for), dropped.global (the same, for the server wide ceiling), evicted (slow clients
+  // disconnected), dropped.room (chat lines a room had too many waiting for), rooms.moved (rooms handed to a less
+  // busy loop), fanout.parallel (lines and notices the fan-out lanes queued for a big room), rejected (connections
+  // turned away by chat.maxConnections or chat.acceptRate), paused (reads stopped for a client over its flood budget)
+  Map<String, Long> getCounters();
+  
+  Map<String, Long> getRates();
+  
+  // Buffers waiting in the outbound queues, in total and of the client with the most.
+  long getQueuedBuffers();
+  
+  long getMaxQueuedBuffers();
+  
+  // Bytes waiting in the outbound queues, what chat.outTotal caps.
+  long getQueuedBytes();
+  
+  // The direct buffer pool: slab.bytes allocated for it, buffers in.use, buffers taken since start, and how many of
+  // those were unpooled (too big, or the pool was at chat.poolBytes).
+  Map<String, Long> getPool();
+  
+  // What /compress cost and saved: bytes.in before compressing, bytes.out after, and how many buffers were stored
+  // as they were because they were too small or didn't get smaller.
+  Map<String, Long> getCompression();
+  
+  // Links to the other nodes of the cluster that are up, users those nodes told of, frames in and out, and frames
+  // dropped because a link fell too far behind. Empty when not in a cluster.
+  Map<String, Long> getCluster();
+  
+  // The lanes that queue big rooms' traffic: their threads, how many lanes and how many chunks are waiting for one.
+  // Empty when chat.fanOutParallel is 0.
+  Map<String, Long> getFanOut();
+  
+  // Journal records written out, dropped because the ring was full, and waiting to be written.
+  Map<String, Long> getJournal();
+  
+  // Time each event loop spent running its rooms over the last second, by loop.
+  Map<String, Long> getRoomLoad();
+  
+  // p50, p99, p99.9 and max of the time one event loop iteration took.
+  Map<String, Long> getLoopTime();
+  
+  // p50, p99, p99.9 and max of the time to queue a chat line for its whole room.
+  Map<String, Long> getFanOutTime();
+  
+  // ERROR replies, by cause.
+  Map<String, Long> getErrors();
+  
+  // The rooms that took the most fan-out time, with their members, messages, time spent and the loop that owns them.
+  List<String> getBusiestRooms();
+  
+}
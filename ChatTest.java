@@ -0,0 +1,832 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Protocol tests for ChatServer, against real servers over loopback sockets. Run with:
+//
+//   javac *.java && java ChatTest [test...]
+//
+// Without arguments every test runs, otherwise only those named (e.g. protocol). A test starts a server of its own in
+// a new JVM for each engine it covers: the thread engine (threads), one event loop (loop) and test.loops event loops
+// (loops, 4). One line is printed per test and engine, and the exit status is 1 if any of them failed. test.timeout is
+// how long to wait for a line the server should send, in milliseconds (5000).
+public class ChatTest
+{
+  
+  static private final int loops = Integer.getInteger("test.loops", 4);
+  static private final int patience = Integer.getInteger("test.timeout", 5000);
+  
+  static private final Charset charset = StandardCharsets.UTF_8;
+  
+  // Anything else a test has to say about its run, like how many rooms moved.
+  static private String note = "";
+  
+  // What a test does with a server listening on port.
+  interface Body
+  {
+    void run(int port) throws Exception;
+  }
+  
+  // A way to run the server: its system properties, and its arguments after the port.
+  static private class Engine
+  {
+    
+    public final String name;
+    public final String[] options;
+    public final String[] args;
+    
+    public Engine(String name, String[] options, String... args)
+    {
+      this.name = name;
+      this.options = options;
+      this.args = args;
+    }
+    
+  }
+  
+  static private final Engine THREADS = new Engine("threads", new String[] { "-Dchat.engine=threads" });
+  static private final Engine LOOP = new Engine("loop", new String[0]);
+  static private final Engine LOOPS = new Engine("loops", new String[0], String.valueOf(loops));
+  
+  static private class Test
+  {
+    
+    public String name;
+    public Engine[] engines;
+    public String[] options;
+    public Body body;
+    
+    // Most file descriptors the server may have open, 0 for the usual limit.
+    public int files;
+    
+    public Test(String name, Engine[] engines, String[] options, Body body)
+    {
+      this(name, engines, options, 0, body);
+    }
+    
+    public Test(String name, Engine[] engines, String[] options, int files, Body body)
+    {
+      this.name = name;
+      this.engines = engines;
+      this.options = options;
+      this.files = files;
+      this.body = body;
+    }
+    
+  }
+  
+  static private final ArrayList<Test> tests = new ArrayList<>();
+  
+  static
+  {
+    
+    tests.add(new Test("protocol", new Engine[] { THREADS, LOOP, LOOPS }, new String[0], ChatTest::protocol));
+    tests.add(new Test("shard", new Engine[] { LOOPS }, new String[] { "-Dchat.rebalance=1", "-Dchat.history=0" },
+      ChatTest::shard));
+    tests.add(new Test("admission", new Engine[] { THREADS, LOOP, LOOPS }, new String[] { "-Dchat.maxConnections=1000" },
+      ChatTest::admission));
+    tests.add(new Test("rate", new Engine[] { LOOPS }, new String[] { "-Dchat.acceptRate=500", "-Dchat.listeners=4" },
+      ChatTest::rate));
+    tests.add(new Test("files", new Engine[] { THREADS, LOOP, LOOPS }, new String[0], 256, ChatTest::files));
+    
+  }
+  
+  static public void main( String args[] ) throws Exception
+  {
+    
+    boolean failed = false;
+    
+    for (Test t : tests)
+    {
+      
+      if (args.length > 0 && !Arrays.asList(args).contains(t.name))
+      {
+        continue;
+      }
+      
+      for (Engine e : t.engines)
+      {
+        long started = System.nanoTime();
+        String result;
+        
+        note = "";
+        
+        try (Server server = new Server(e, t.options, t.files))
+        {
+          t.body.run(server.port);
+          result = "OK"+note;
+        }
+        
+        catch( Exception | AssertionError x )
+        {
+          result = "FAILED "+x;
+          failed = true;
+        }
+        
+        System.out.println( String.format( "%-12s %-8s %6.1f s  %s", t.name, e.name, (System.nanoTime() - started) / 1e9,
+          result ) );
+      }
+    }
+    
+    System.exit(failed ? 1 : 0);
+    
+  }
+  
+  static private void check(boolean ok, String what)
+  {
+    
+    if (!ok)
+    {
+      throw new AssertionError(what);
+    }
+    
+  }
+  
+  // Nickname, rooms, chat lines, private messages and the notices and errors that go with them, as two and then three
+  // users see them.
+  static private void protocol(int port) throws Exception
+  {
+    
+    try (Conn a = new Conn(port); Conn b = new Conn(port); Conn c = new Conn(port))
+    {
+      
+      // Nothing but /nick, /bye and friends before a nickname.
+      a.send("hello");
+      a.expect("ERROR");
+      a.send("/join r");
+      a.expect("ERROR");
+      
+      // Several commands in one read.
+      a.send("/nick alice", "/join r");
+      a.expect("OK", "OK");
+      
+      b.send("/nick alice");
+      b.expect("ERROR");
+      b.send("/nick bob", "/join r");
+      b.expect("OK", "OK");
+      a.expect("JOINED bob");
+      
+      // Several chat lines in one read, the sender gets them too.
+      a.send("one", "two", "three");
+      b.expect("MESSAGE alice one", "MESSAGE alice two", "MESSAGE alice three");
+      a.expect("MESSAGE alice one", "MESSAGE alice two", "MESSAGE alice three");
+      
+      // "//" escapes a chat line that starts with '/', it goes out as it came in.
+      a.send("//join r");
+      b.expect("MESSAGE alice //join r");
+      a.expect("MESSAGE alice //join r");
+      
+      // Errors: unknown commands, missing arguments, unknown users, too long lines.
+      a.send("/dance", "/nick", "/priv bob", "/priv nobody hi", "x".repeat(20000));
+      a.expect("ERROR", "ERROR", "ERROR", "ERROR", "ERROR");
+      
+      a.send("/priv bob hi there");
+      a.expect("OK");
+      b.expect("PRIVATE alice hi there");
+      
+      // Characters split over reads, the last one over three, and reads that end in the middle of a line.
+      a.write("café €".getBytes(charset), 4, 7, 8);
+      a.write("\n".getBytes(charset));
+      b.expect("MESSAGE alice café €");
+      a.expect("MESSAGE alice café €");
+      
+      a.send("/nick carol");
+      a.expect("OK");
+      b.expect("NEWNICK alice carol");
+      
+      // The old nickname is free again. Joining replays the room's history after the OK.
+      c.send("/nick alice", "/join r");
+      c.expect("OK", "OK", "MESSAGE alice one", "MESSAGE alice two", "MESSAGE alice three", "MESSAGE alice //join r",
+        "MESSAGE alice café €");
+      a.expect("JOINED alice");
+      b.expect("JOINED alice");
+      
+      a.send("/leave", "not in a room");
+      a.expect("OK", "ERROR");
+      b.expect("LEFT carol");
+      c.expect("LEFT carol");
+      
+      // /bye leaves the room first. Anything after it is ignored, and the server closes the connection once BYE is out.
+      b.send("/bye", "ignored");
+      b.expect("OK", "BYE");
+      b.expectClosed();
+      c.expect("LEFT bob");
+      
+      c.send("last");
+      c.expect("MESSAGE alice last");
+      
+      a.send("/nick bob");
+      a.expect("OK");
+    }
+    
+  }
+  
+  // Rooms of members who all talk at once while churners keep joining and leaving them: every member gets every line
+  // of its room, in the order each member sent them. Rooms move between the loops meanwhile, and once everyone is gone
+  // no rooms or buffers are left over.
+  static private void shard(int port) throws Exception
+  {
+    
+    int rooms = 4;
+    int members = 10;
+    int lines = 300;
+    
+    long pooled = stat(stats(port), "pool", "in.use");
+    
+    List<Conn> all = new ArrayList<>();
+    Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+    List<Thread> threads = new ArrayList<>();
+    
+    for (int r = 0; r < rooms; r++)
+    {
+      for (int i = 0; i < members; i++)
+      {
+        Conn m = new Conn(port);
+        
+        m.send("/nick u"+r+"_"+i, "/join r"+r);
+        m.expect("OK", "OK");
+        all.add(m);
+      }
+    }
+    
+    AtomicBoolean stop = new AtomicBoolean();
+    List<Thread> churners = new ArrayList<>();
+    
+    for (int k = 0; k < 8; k++)
+    {
+      String nick = "churn"+k;
+      
+      churners.add(start(errors, () -> {
+        
+        try (Conn ch = new Conn(port))
+        {
+          ch.send("/nick "+nick);
+          
+          while (!stop.get())
+          {
+            ch.send("/join r"+ThreadLocalRandom.current().nextInt(rooms), "/leave", "hello?");
+            Thread.sleep(2);
+          }
+          
+          ch.send("/bye");
+          ch.until("BYE");
+        }
+      }));
+    }
+    
+    for (int n = 0; n < all.size(); n++)
+    {
+      Conn m = all.get(n);
+      String room = "u"+n / members+"_";
+      String nick = room+n % members;
+      
+      // Each member hears from every member of its room, itself too, the lines of each in order.
+      threads.add(start(errors, () -> {
+        
+        Map<String, Integer> seen = new HashMap<>();
+        int done = 0;
+        
+        while (done < members)
+        {
+          String l = m.line();
+          
+          check(l != null, nick+" was disconnected");
+          
+          if (!l.startsWith("MESSAGE ") || l.startsWith("MESSAGE churn"))
+          {
+            continue;
+          }
+          
+          String[] words = l.split(" ");
+          int k = Integer.parseInt(words[3]);
+          
+          check(words[1].startsWith(room), nick+" got "+l);
+          check(seen.getOrDefault(words[1], -1) + 1 == k, nick+" got "+l+" after line "+seen.get(words[1]));
+          
+          seen.put(words[1], k);
+          
+          if (k == lines - 1)
+          {
+            done++;
+          }
+        }
+      }));
+      
+      threads.add(start(errors, () -> {
+        
+        // Over a few seconds, so that the loops get to rebalance.
+        for (int k = 0; k < lines; k++)
+        {
+          m.send(nick+" "+k);
+          Thread.sleep(20);
+        }
+      }));
+    }
+    
+    for (Thread t : threads)
+    {
+      t.join();
+    }
+    
+    stop.set(true);
+    
+    for (Thread t : churners)
+    {
+      t.join();
+    }
+    
+    if (!errors.isEmpty())
+    {
+      throw new AssertionError(errors.peek());
+    }
+    
+    List<String> stats = stats(port);
+    
+    long moved = stat(stats, "rooms.moved", null);
+    
+    check(stat(stats, "rooms", null) == rooms, "rooms "+stat(stats, "rooms", null)+" rather than "+rooms);
+    check(moved > 0, "no room moved");
+    
+    note = ", "+rooms * members * lines+" lines to "+members+" members each, "+moved+" rooms moved";
+    
+    for (Conn m : all)
+    {
+      m.send("/bye");
+      m.until("BYE");
+      m.close();
+    }
+    
+    // The last of them may still be on the way out.
+    long deadline = System.nanoTime() + patience * 1000000L;
+    
+    while (true)
+    {
+      stats = stats(port);
+      
+      long left = stat(stats, "rooms", null);
+      long used = stat(stats, "pool", "in.use");
+      
+      if (left == 0 && used == pooled)
+      {
+        break;
+      }
+      
+      check(System.nanoTime() < deadline, left+" rooms and "+(used - pooled)+" buffers left over");
+      Thread.sleep(100);
+    }
+    
+  }
+  
+  // 3000 connections at once against chat.maxConnections=1000: exactly 1000 get in, and are served, and the others
+  // get ERROR and are closed.
+  static private void admission(int port) throws Exception
+  {
+    
+    List<Conn> conns = connect(port, 3000);
+    
+    try
+    {
+      List<Conn> in = admitted(conns);
+      
+      check(in.size() == 1000, in.size()+" let in rather than 1000");
+      
+      in.get(0).send("/nick first");
+      in.get(0).expect("OK");
+      
+      note = ", 1000 of 3000 let in";
+    }
+    
+    finally
+    {
+      close(conns);
+    }
+    
+  }
+  
+  // 1000 connections at once against a server that may only have 256 files open: accept() fails for those that don't
+  // fit, and the server goes on serving the connections it has, and takes new ones again once those are gone.
+  static private void files(int port) throws Exception
+  {
+    
+    try (Conn first = new Conn(port))
+    {
+      
+      // Classes are loaded from the class path the first time they are needed, which takes a file too, so all that
+      // the test does is done once while files are still there.
+      try (Conn warm = new Conn(port))
+      {
+        warm.send("/nick warm", "/join w");
+        warm.expect("OK", "OK");
+        warm.send("hello");
+        warm.expect("MESSAGE warm hello");
+        warm.send("/leave", "/bye");
+        warm.expect("OK", "BYE");
+      }
+      
+      first.send("/nick first");
+      first.expect("OK");
+      
+      List<Conn> conns = connect(port, 1000);
+      
+      try
+      {
+        Thread.sleep(1000);
+        
+        first.send("/join r", "still here");
+        first.expect("OK", "MESSAGE first still here");
+      }
+      
+      finally
+      {
+        close(conns);
+      }
+      
+      try (Conn later = new Conn(port))
+      {
+        later.send("/nick later", "/join r");
+        later.expect("OK", "OK");
+        first.expect("JOINED later");
+      }
+    }
+    
+  }
+  
+  // 3000 connections as fast as they come against chat.acceptRate=500, on several listeners: a second's worth get in
+  // right away, and then 500 a second.
+  static private void rate(int port) throws Exception
+  {
+    
+    long started = System.nanoTime();
+    List<Conn> conns = connect(port, 3000);
+    double seconds = (System.nanoTime() - started) / 1e9;
+    
+    try
+    {
+      List<Conn> in = admitted(conns);
+      
+      check(in.size() >= 500 && in.size() <= 550 + 500 * seconds, in.size()+" let in over "+seconds+" s");
+      
+      note = String.format( ", %d of 3000 let in over %.1f s", in.size(), seconds );
+    }
+    
+    finally
+    {
+      close(conns);
+    }
+    
+  }
+  
+  static private List<Conn> connect(int port, int n) throws IOException
+  {
+    
+    List<Conn> conns = new ArrayList<>();
+    
+    try
+    {
+      for (int i = 0; i < n; i++)
+      {
+        conns.add(new Conn(port));
+      }
+    }
+    
+    catch( IOException ie )
+    {
+      close(conns);
+      throw ie;
+    }
+    
+    return conns;
+    
+  }
+  
+  static private void close(List<Conn> conns) throws IOException
+  {
+    
+    for (Conn c : conns)
+    {
+      c.close();
+    }
+    
+  }
+  
+  // The connections that were let in. Those turned away have to have been sent ERROR and closed, which is waited for
+  // until a second goes by without another.
+  static private List<Conn> admitted(List<Conn> conns) throws IOException, InterruptedException
+  {
+    
+    List<Conn> in = new ArrayList<>(conns);
+    long quiet = System.nanoTime();
+    
+    while (System.nanoTime() - quiet < 1000000000L)
+    {
+      for (Iterator<Conn> it = in.iterator(); it.hasNext(); )
+      {
+        Conn c = it.next();
+        
+        if (c.ready())
+        {
+          c.expect("ERROR");
+          c.expectClosed();
+          
+          it.remove();
+          quiet = System.nanoTime();
+        }
+      }
+      
+      Thread.sleep(100);
+    }
+    
+    return in;
+    
+  }
+  
+  // Something that may fail in a thread of its own.
+  interface Task
+  {
+    void run() throws Exception;
+  }
+  
+  // Run task in a new thread, adding whatever it throws to errors.
+  static private Thread start(Queue<Throwable> errors, Task task)
+  {
+    
+    Thread t = new Thread(() -> {
+      
+      try
+      {
+        task.run();
+      }
+      
+      catch( Exception | AssertionError x )
+      {
+        errors.add(x);
+      }
+    });
+    
+    t.start();
+    
+    return t;
+    
+  }
+  
+  // What /stats says, a line per figure without the STATS.
+  static private List<String> stats(int port) throws IOException
+  {
+    
+    List<String> stats = new ArrayList<>();
+    
+    try (Conn c = new Conn(port))
+    {
+      c.send("/stats");
+      
+      String l;
+      
+      while (!"OK".equals(l = c.line()))
+      {
+        check(l != null && l.startsWith("STATS "), "/stats said \""+l+"\"");
+        stats.add(l.substring(6));
+      }
+    }
+    
+    return stats;
+    
+  }
+  
+  // The value of figure name, or of its field after the name, like in.use of pool.
+  static private long stat(List<String> stats, String name, String field)
+  {
+    
+    for (String l : stats)
+    {
+      List<String> words = Arrays.asList(l.split(" "));
+      
+      if (words.get(0).equals(name))
+      {
+        return Long.parseLong(words.get(field == null ? 1 : words.indexOf(field) + 1));
+      }
+    }
+    
+    throw new AssertionError("no "+name+" in /stats");
+    
+  }
+  
+  // A client of the text protocol, reading with a timeout.
+  static private class Conn implements Closeable
+  {
+    
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    
+    public Conn(int port) throws IOException
+    {
+      
+      socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      socket.setSoTimeout(patience);
+      socket.setTcpNoDelay(true);
+      
+      in = new BufferedInputStream(socket.getInputStream());
+      out = socket.getOutputStream();
+      
+    }
+    
+    // Send lines, all in one write.
+    public void send(String... lines) throws IOException
+    {
+      
+      StringBuilder sb = new StringBuilder();
+      
+      for (String l : lines)
+      {
+        sb.append(l).append('\n');
+      }
+      
+      out.write(sb.toString().getBytes(charset));
+      
+    }
+    
+    // Send bytes in writes that end at the given offsets and the rest after, with a pause after each so that the
+    // server reads them separately.
+    public void write(byte[] bytes, int... splits) throws IOException, InterruptedException
+    {
+      
+      int from = 0;
+      
+      for (int to : splits)
+      {
+        out.write(bytes, from, to - from);
+        Thread.sleep(50);
+        from = to;
+      }
+      
+      out.write(bytes, from, bytes.length - from);
+      
+    }
+    
+    // The next line without its LF, null if the connection was closed.
+    public String line() throws IOException
+    {
+      
+      line.reset();
+      
+      int b;
+      
+      while ((b = in.read()) != '\n')
+      {
+        if (b < 0)
+        {
+          return null;
+        }
+        
+        line.write(b);
+      }
+      
+      return line.toString(charset);
+      
+    }
+    
+    public void expect(String... lines) throws IOException
+    {
+      
+      for (String l : lines)
+      {
+        String got = line();
+        
+        check(l.equals(got), "expected \""+l+"\", got \""+got+"\"");
+      }
+      
+    }
+    
+    // Whether something came that hasn't been read yet.
+    public boolean ready() throws IOException
+    {
+      return in.available() > 0;
+    }
+    
+    // Skip lines up to and including l.
+    public void until(String l) throws IOException
+    {
+      
+      String got;
+      
+      while (!l.equals(got = line()))
+      {
+        check(got != null, "closed before \""+l+"\"");
+      }
+      
+    }
+    
+    public void expectClosed() throws IOException
+    {
+      
+      String got = line();
+      
+      check(got == null, "expected the connection closed, got \""+got+"\"");
+      
+    }
+    
+    public void close() throws IOException
+    {
+      socket.close();
+    }
+    
+  }
+  
+  // A ChatServer in a JVM of its own, on a free port, stopped by close().
+  static private class Server implements Closeable
+  {
+    
+    public final int port;
+    private final Process process;
+    
+    public Server(Engine engine, String[] options, int files) throws IOException
+    {
+      
+      try (ServerSocket probe = new ServerSocket(0))
+      {
+        port = probe.getLocalPort();
+      }
+      
+      String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+      
+      List<String> command = new ArrayList<>();
+      
+      // With a lower limit on open files, through a shell that sets it and then becomes the JVM.
+      if (files > 0)
+      {
+        command.addAll(List.of("/bin/sh", "-c", "ulimit -n "+files+" && exec \"$0\" \"$@\""));
+      }
+      
+      command.addAll(List.of(java, "-cp", System.getProperty("java.class.path")));
+      
+      command.addAll(List.of(engine.options));
+      command.addAll(List.of(options));
+      command.add("ChatServer");
+      command.add(String.valueOf(port));
+      command.addAll(List.of(engine.args));
+      
+      ProcessBuilder pb = new ProcessBuilder(command);
+      
+      pb.redirectErrorStream(true);
+      
+      process = pb.start();
+      
+      BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), charset));
+      
+      // It's ready once it says where it listens. What it prints after that is read too, so it never blocks on a
+      // full pipe.
+      String line;
+      
+      while ((line = output.readLine()) != null && !line.startsWith("Listening on port"))
+      {
+      }
+      
+      if (line == null)
+      {
+        throw new IOException("the server didn't start");
+      }
+      
+      Thread drain = new Thread(() -> {
+        
+        try
+        {
+          while (output.readLine() != null)
+          {
+          }
+        }
+        
+        catch( IOException ie )
+        {
+        }
+      });
+      
+      drain.setDaemon(true);
+      drain.start();
+      
+    }
+    
+    public void close()
+    {
+      
+      process.destroyForcibly();
+      
+      try
+      {
+        process.waitFor();
+      }
+      
+      catch( InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+      
+    }
+    
+  }
+  
+}
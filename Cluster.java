@@ -0,0 +1,852 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Links ChatServer processes into a cluster, so rooms, nicknames and private messages span all of them.
+//
+// Every node is given the same list of node addresses, and its own place in it. Each pair of nodes keeps one TCP link,
+// dialled by the node that comes first in the list, with a reader thread and a writer thread per link. Events are
+// frames: the length of what follows (an int), an opcode (a byte) and the body, with names written by writeUTF().
+//
+// Nodes tell each other which rooms they have members in and which users they have, all of it when a link comes up and
+// every change after that. A chat line crosses a link once, and only to the nodes with members in its room, which
+// then hand it to their own members. Each nickname is owned by one node, picked by its hash, and a node asks the owner
+// before it gives a nickname out, so no two users anywhere share one. Ids are unique across nodes, id % nodes being
+// the node of the user, so a private message by id goes straight to that node.
+class Cluster
+{
+  
+  // What a node does with the events of other nodes. Called by the links' reader threads.
+  interface Handler
+  {
+    
+    // A chat line sent to room by user id (of another node), with nickname nick.
+    void message(String room, int id, String nick, byte[] text);
+    
+    // BinaryProtocol.JOINED, LEFT or NEWNICK about user id in room. nick is the old nickname for NEWNICK, and body
+    // the new one.
+    void notice(String room, int op, int id, String nick, String body);
+    
+    // A private message for local user to, from user id with nickname nick.
+    void priv(int to, int id, String nick, byte[] text);
+    
+  }
+  
+  // Between nodes.
+  static private final int HELLO = 1;        // u8 node, from the node that dialled
+  static private final int ROOM_ON = 2;      // room, the node has members in it now
+  static private final int ROOM_OFF = 3;     // room, no more
+  static private final int NICK_ON = 4;      // u32 id, nickname, a user of the node
+  static private final int NICK_OFF = 5;     // u32 id, nickname, gone or renamed
+  static private final int SYNCED = 6;       // the node has sent all its rooms and users
+  static private final int CLAIM = 7;        // u32 request, nickname, to the nickname's owner
+  static private final int CLAIMED = 8;      // u32 request, u8 GRANTED or TAKEN
+  static private final int RELEASE = 9;      // nickname, to its owner
+  static private final int MESSAGE = 10;     // room, u32 id, nickname, text
+  static private final int NOTICE = 11;      // room, u8 op, u32 id, nickname, body
+  static private final int PRIV = 12;        // u32 to, u32 id, nickname, text
+  
+  // What claim() says.
+  static final int GRANTED = 0;
+  static final int TAKEN = 1;
+  static final int UNREACHABLE = 2;
+  
+  // host:port of every node's link listener, and which one is this node.
+  private final String[] nodes;
+  final int self;
+  
+  // How long to wait for a nickname's owner, in milliseconds, and most frames waiting for one link.
+  private final int timeout;
+  private final int queueFrames;
+  
+  private final Link[] links;
+  private Handler handler;
+  
+  // What other nodes are told about this one: local members per room, and local users by nickname. Changed, and the
+  // change queued for every link, holding the Cluster's lock, so a link that comes up gets all of it first and then
+  // every change after in order.
+  private final HashMap<String, Integer> rooms = new HashMap<>();
+  private final HashMap<String, Integer> users = new HashMap<>();
+  
+  // The nicknames this node owns that are taken, and the node that took each. Guarded by its own lock.
+  private final HashMap<String, Integer> claims = new HashMap<>();
+  
+  // Claims waiting for their owner's answer, by request number.
+  private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger requests = new AtomicInteger();
+  
+  private final AtomicLong framesIn = new AtomicLong();
+  private final AtomicLong framesOut = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  
+  static private class Pending
+  {
+    
+    public final int node;
+    public final CompletableFuture<Integer> result = new CompletableFuture<>();
+    
+    public Pending(int node)
+    {
+      this.node = node;
+    }
+    
+  }
+  
+  // A frame being put together: the length and opcode go first, the length filled in by done(). A ByteArrayOutputStream
+  // can't fail, so neither can this.
+  static private class Frame extends ByteArrayOutputStream
+  {
+    
+    private final DataOutputStream out = new DataOutputStream(this);
+    
+    public Frame(int op)
+    {
+      super(64);
+      writeBytes(new byte[] { 0, 0, 0, 0, (byte)op });
+    }
+    
+    public Frame u8(int n)
+    {
+      write(n);
+      return this;
+    }
+    
+    public Frame u32(int n)
+    {
+      writeBytes(new byte[] { (byte)(n >>> 24), (byte)(n >>> 16), (byte)(n >>> 8), (byte)n });
+      return this;
+    }
+    
+    public Frame utf(String s)
+    {
+      
+      try
+      {
+        out.writeUTF(s);
+      }
+      
+      catch( IOException ie )
+      {
+        throw new UncheckedIOException( ie );
+      }
+      
+      return this;
+      
+    }
+    
+    public Frame text(ByteBuffer buf, int start, int end)
+    {
+      
+      ensure(end - start);
+      buf.get(start, this.buf, count, end - start);
+      count += end - start;
+      
+      return this;
+      
+    }
+    
+    private void ensure(int more)
+    {
+      if (count + more > buf.length)
+      {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + more));
+      }
+    }
+    
+    public byte[] done()
+    {
+      
+      byte[] frame = Arrays.copyOf(buf, count);
+      ByteBuffer.wrap(frame).putInt(0, count - 4);
+      
+      return frame;
+      
+    }
+    
+  }
+  
+  // One connection of a link, with its own queue so a writer left over from an earlier one can't take its frames.
+  static private class Connection
+  {
+    
+    public final Socket socket;
+    public final LinkedBlockingQueue<byte[]> out;
+    
+    public Connection(Socket socket, int queueFrames)
+    {
+      this.socket = socket;
+      this.out = new LinkedBlockingQueue<>(queueFrames);
+    }
+    
+  }
+  
+  // The link to one other node, and what that node told us over it.
+  private class Link
+  {
+    
+    public final int node;
+    
+    // Null while it's down.
+    public volatile Connection connection;
+    
+    public final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    public final ConcurrentHashMap<String, Integer> nicks = new ConcurrentHashMap<>();
+    public final ConcurrentHashMap<Integer, String> ids = new ConcurrentHashMap<>();
+    
+    public Link(int node)
+    {
+      this.node = node;
+    }
+    
+    public boolean send(byte[] frame)
+    {
+      
+      Connection c = connection;
+      
+      if (c == null)
+      {
+        return false;
+      }
+      
+      if (!c.out.offer(frame))
+      {
+        dropped.incrementAndGet();
+        return false;
+      }
+      
+      return true;
+      
+    }
+    
+  }
+  
+  // The cluster set with -Dchat.cluster and -Dchat.node, null without them.
+  static Cluster fromProperties()
+  {
+    
+    String list = System.getProperty("chat.cluster");
+    
+    if (list == null || list.isEmpty())
+    {
+      return null;
+    }
+    
+    return new Cluster(list.split(","), Integer.getInteger("chat.node", 0),
+      Integer.getInteger("chat.clusterTimeout", 2000), Integer.getInteger("chat.clusterQueue", 65536));
+  }
+  
+  Cluster(String[] nodes, int self, int timeout, int queueFrames)
+  {
+    
+    if (self < 0 || self >= nodes.length || nodes.length > 255)
+    {
+      throw new IllegalArgumentException( "Node "+self+" of "+nodes.length );
+    }
+    
+    this.nodes = nodes;
+    this.self = self;
+    this.timeout = timeout;
+    this.queueFrames = queueFrames;
+    this.links = new Link[nodes.length];
+    
+    for (int i = 0; i < nodes.length; i++)
+    {
+      links[i] = i == self ? null : new Link(i);
+    }
+    
+  }
+  
+  int size()
+  {
+    return nodes.length;
+  }
+  
+  // Listen for the nodes before this one in the list, and keep dialling the ones after it.
+  void start(Handler handler) throws IOException
+  {
+    
+    this.handler = handler;
+    
+    ServerSocket listener = new ServerSocket();
+    listener.bind(address(nodes[self]));
+    
+    thread("cluster-accept", () -> {
+      while (true)
+      {
+        Socket s = listener.accept();
+        
+        thread("cluster-in", () -> {
+          DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+          
+          in.readInt();
+          
+          if (in.readByte() != HELLO)
+          {
+            s.close();
+            return;
+          }
+          
+          int node = in.readUnsignedByte();
+          
+          if (node >= nodes.length || links[node] == null)
+          {
+            s.close();
+            return;
+          }
+          
+          serve(links[node], s, in);
+        });
+      }
+    });
+    
+    for (int i = self + 1; i < nodes.length; i++)
+    {
+      Link link = links[i];
+      
+      thread("cluster-dial-"+i, () -> {
+        while (true)
+        {
+          try
+          {
+            Socket s = new Socket();
+            s.connect(address(nodes[link.node]), timeout);
+            
+            s.getOutputStream().write(new Frame(HELLO).u8(self).done());
+            
+            serve(link, s, new DataInputStream(new BufferedInputStream(s.getInputStream())));
+          }
+          
+          catch( IOException ie )
+          {
+          }
+          
+          Thread.sleep(1000);
+        }
+      });
+    }
+    
+    System.out.println( "Cluster node "+self+" of "+nodes.length+", links on "+nodes[self] );
+    
+  }
+  
+  // Run a new connection of link until it fails.
+  private void serve(Link link, Socket s, DataInputStream in) throws IOException
+  {
+    
+    s.setTcpNoDelay(true);
+    
+    Connection c = new Connection(s, queueFrames);
+    
+    // Whatever the other end knew of this node goes with the old connection, so it's told everything again.
+    synchronized (this)
+    {
+      Connection old = link.connection;
+      
+      if (old != null)
+      {
+        old.socket.close();
+      }
+      
+      forget(link);
+      link.connection = c;
+      
+      for (String room : rooms.keySet())
+      {
+        link.send(new Frame(ROOM_ON).utf(room).done());
+      }
+      
+      for (Map.Entry<String, Integer> e : users.entrySet())
+      {
+        link.send(new Frame(NICK_ON).u32(e.getValue()).utf(e.getKey()).done());
+      }
+      
+      link.send(new Frame(SYNCED).done());
+    }
+    
+    System.out.println( "Cluster link to node "+link.node+" up" );
+    
+    thread("cluster-out-"+link.node, () -> write(c));
+    
+    try
+    {
+      while (true)
+      {
+        int length = in.readInt();
+        byte[] body = new byte[length - 1];
+        int op = in.readUnsignedByte();
+        
+        in.readFully(body);
+        framesIn.incrementAndGet();
+        
+        read(link, op, new DataInputStream(new ByteArrayInputStream(body)));
+      }
+    }
+    
+    catch( IOException ie )
+    {
+      synchronized (this)
+      {
+        if (link.connection == c)
+        {
+          link.connection = null;
+          forget(link);
+          
+          System.out.println( "Cluster link to node "+link.node+" down: "+ie );
+        }
+      }
+      
+      s.close();
+    }
+    
+  }
+  
+  // Drop what the node on the other end of link told us, and give up on its claims.
+  private void forget(Link link)
+  {
+    
+    link.rooms.clear();
+    link.nicks.clear();
+    link.ids.clear();
+    
+    for (Pending p : pending.values())
+    {
+      if (p.node == link.node)
+      {
+        p.result.complete(UNREACHABLE);
+      }
+    }
+    
+  }
+  
+  // Send what's queued for c, as much as there is at a time, until it's closed.
+  private void write(Connection c) throws IOException
+  {
+    
+    OutputStream out = new BufferedOutputStream(c.socket.getOutputStream(), 65536);
+    
+    try
+    {
+      while (!c.socket.isClosed())
+      {
+        byte[] frame = c.out.poll(1, TimeUnit.SECONDS);
+        
+        for (; frame != null; frame = c.out.poll())
+        {
+          out.write(frame);
+          framesOut.incrementAndGet();
+        }
+        
+        out.flush();
+      }
+    }
+    
+    catch( IOException | InterruptedException e )
+    {
+      c.socket.close();
+    }
+    
+  }
+  
+  // Act on one frame from the node at the other end of link.
+  private void read(Link link, int op, DataInputStream in) throws IOException
+  {
+    
+    switch (op)
+    {
+      case ROOM_ON:
+        
+        link.rooms.add(in.readUTF());
+        break;
+      
+      case ROOM_OFF:
+        
+        link.rooms.remove(in.readUTF());
+        break;
+      
+      case NICK_ON:
+      {
+        int id = in.readInt();
+        String nick = in.readUTF();
+        
+        link.nicks.put(nick, id);
+        link.ids.put(id, nick);
+        
+        // Also how an owner that restarted learns the nicknames it owns again.
+        if (owner(nick) == self)
+        {
+          synchronized (claims)
+          {
+            claims.putIfAbsent(nick, link.node);
+          }
+        }
+        
+        break;
+      }
+      
+      case NICK_OFF:
+      {
+        int id = in.readInt();
+        String nick = in.readUTF();
+        
+        link.nicks.remove(nick, id);
+        link.ids.remove(id, nick);
+        break;
+      }
+      
+      case SYNCED:
+        
+        // The node's users went away while the link was down, or with a restart of the node.
+        synchronized (claims)
+        {
+          claims.entrySet().removeIf(e -> e.getValue() == link.node && !link.nicks.containsKey(e.getKey()));
+        }
+        
+        break;
+      
+      case CLAIM:
+      {
+        int request = in.readInt();
+        
+        link.send(new Frame(CLAIMED).u32(request).u8(grant(in.readUTF(), link.node)).done());
+        break;
+      }
+      
+      case CLAIMED:
+      {
+        Pending p = pending.get(in.readInt());
+        
+        if (p != null)
+        {
+          p.result.complete(in.readUnsignedByte());
+        }
+        
+        break;
+      }
+      
+      case RELEASE:
+        
+        release(in.readUTF(), link.node);
+        break;
+      
+      case MESSAGE:
+      {
+        String room = in.readUTF();
+        int id = in.readInt();
+        String nick = in.readUTF();
+        
+        handler.message(room, id, nick, rest(in));
+        break;
+      }
+      
+      case NOTICE:
+      {
+        String room = in.readUTF();
+        int kind = in.readUnsignedByte();
+        int id = in.readInt();
+        
+        handler.notice(room, kind, id, in.readUTF(), in.readUTF());
+        break;
+      }
+      
+      case PRIV:
+      {
+        int to = in.readInt();
+        int id = in.readInt();
+        String nick = in.readUTF();
+        
+        handler.priv(to, id, nick, rest(in));
+        break;
+      }
+    }
+    
+  }
+  
+  // The node that decides who may have nick.
+  int owner(String nick)
+  {
+    return Math.floorMod(nick.hashCode(), nodes.length);
+  }
+  
+  // Take nick for a user of this node, asking its owner unless that is this node. Completes with GRANTED, TAKEN by a
+  // user of some node, or UNREACHABLE if the owner's link is down, right away when this node is the owner and on the
+  // link's reader thread otherwise. Never waits for the owner: whoever does gives up after timeout() by completing it
+  // with UNREACHABLE.
+  CompletableFuture<Integer> claim(String nick)
+  {
+    
+    int owner = owner(nick);
+    
+    if (owner == self)
+    {
+      return CompletableFuture.completedFuture(grant(nick, self));
+    }
+    
+    int request = requests.incrementAndGet();
+    Pending p = new Pending(owner);
+    
+    pending.put(request, p);
+    p.result.whenComplete((claimed, e) -> pending.remove(request));
+    
+    if (!links[owner].send(new Frame(CLAIM).u32(request).utf(nick).done()))
+    {
+      p.result.complete(UNREACHABLE);
+    }
+    
+    return p.result;
+    
+  }
+  
+  // How long to wait for the owner to answer a claim, in milliseconds.
+  int timeout()
+  {
+    return timeout;
+  }
+  
+  // The owner's side of claim().
+  private int grant(String nick, int node)
+  {
+    
+    synchronized (claims)
+    {
+      Integer holder = claims.putIfAbsent(nick, node);
+      
+      return holder == null || holder == node ? GRANTED : TAKEN;
+    }
+    
+  }
+  
+  // Give back a nickname taken with claim().
+  void release(String nick)
+  {
+    
+    int owner = owner(nick);
+    
+    if (owner == self)
+    {
+      release(nick, self);
+    }
+    
+    else
+    {
+      links[owner].send(new Frame(RELEASE).utf(nick).done());
+    }
+    
+  }
+  
+  private void release(String nick, int node)
+  {
+    
+    synchronized (claims)
+    {
+      claims.remove(nick, node);
+    }
+    
+  }
+  
+  // A local user now goes by nick, or by nothing once gone if nick is null. old is the nickname it had, if any.
+  synchronized void user(int id, String old, String nick)
+  {
+    
+    if (old != null)
+    {
+      users.remove(old, id);
+      broadcast(new Frame(NICK_OFF).u32(id).utf(old).done());
+    }
+    
+    if (nick != null)
+    {
+      users.put(nick, id);
+      broadcast(new Frame(NICK_ON).u32(id).utf(nick).done());
+    }
+    
+  }
+  
+  // One more local member of room, or one less.
+  synchronized void joined(String room)
+  {
+    
+    if (rooms.merge(room, 1, Integer::sum) == 1)
+    {
+      broadcast(new Frame(ROOM_ON).utf(room).done());
+    }
+    
+  }
+  
+  synchronized void left(String room)
+  {
+    
+    if (rooms.merge(room, -1, Integer::sum) == 0)
+    {
+      rooms.remove(room);
+      broadcast(new Frame(ROOM_OFF).utf(room).done());
+    }
+    
+  }
+  
+  private void broadcast(byte[] frame)
+  {
+    
+    for (Link link : links)
+    {
+      if (link != null)
+      {
+        link.send(frame);
+      }
+    }
+    
+  }
+  
+  // Hand a chat line, text[start, end), to every other node with members in room, encoded once for all of them.
+  void message(String room, int id, String nick, ByteBuffer text, int start, int end)
+  {
+    
+    byte[] frame = null;
+    
+    for (Link link : links)
+    {
+      if (link != null && link.rooms.contains(room))
+      {
+        if (frame == null)
+        {
+          frame = new Frame(MESSAGE).utf(room).u32(id).utf(nick).text(text, start, end).done();
+        }
+        
+        link.send(frame);
+      }
+    }
+    
+  }
+  
+  // The same for a JOINED, LEFT or NEWNICK.
+  void notice(String room, int op, int id, String nick, String body)
+  {
+    
+    byte[] frame = null;
+    
+    for (Link link : links)
+    {
+      if (link != null && link.rooms.contains(room))
+      {
+        if (frame == null)
+        {
+          frame = new Frame(NOTICE).utf(room).u8(op).u32(id).utf(nick).utf(body).done();
+        }
+        
+        link.send(frame);
+      }
+    }
+    
+  }
+  
+  // The id of the user of another node that goes by nick, 0 if there's none.
+  int find(String nick)
+  {
+    
+    for (Link link : links)
+    {
+      Integer id = link != null ? link.nicks.get(nick) : null;
+      
+      if (id != null)
+      {
+        return id;
+      }
+    }
+    
+    return 0;
+    
+  }
+  
+  // Send a private message, text[start, end), to user to of another node. False if there's no such user, as far as
+  // this node knows.
+  boolean priv(int to, int id, String nick, ByteBuffer text, int start, int end)
+  {
+    
+    int node = Math.floorMod(to, nodes.length);
+    Link link = links[node];
+    
+    if (link == null || !link.ids.containsKey(to))
+    {
+      return false;
+    }
+    
+    return link.send(new Frame(PRIV).u32(to).u32(id).utf(nick).text(text, start, end).done());
+    
+  }
+  
+  // What the cluster has done so far, for the server's stats.
+  Map<String, Long> stats()
+  {
+    
+    long up = 0;
+    long remoteUsers = 0;
+    
+    for (Link link : links)
+    {
+      if (link != null && link.connection != null)
+      {
+        up++;
+        remoteUsers += link.ids.size();
+      }
+    }
+    
+    Map<String, Long> stats = new LinkedHashMap<>();
+    
+    stats.put("links.up", up);
+    stats.put("remote.users", remoteUsers);
+    stats.put("frames.in", framesIn.get());
+    stats.put("frames.out", framesOut.get());
+    stats.put("dropped", dropped.get());
+    
+    return stats;
+    
+  }
+  
+  // What's left of a frame's body after what in has read of it.
+  static private byte[] rest(DataInputStream in) throws IOException
+  {
+    
+    byte[] rest = new byte[in.available()];
+    in.readFully(rest);
+    
+    return rest;
+    
+  }
+  
+  static private InetSocketAddress address(String node)
+  {
+    
+    int colon = node.lastIndexOf(':');
+    
+    return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    
+  }
+  
+  interface Task
+  {
+    void run() throws Exception;
+  }
+  
+  static private void thread(String name, Task task)
+  {
+    
+    Thread t = new Thread(() -> {
+      try
+      {
+        task.run();
+      }
+      
+      catch( Exception e )
+      {
+        System.err.println( name+": "+e );
+      }
+    }, name);
+    
+    t.setDaemon(true);
+    t.start();
+    
+  }
+  
+}
@@ -0,0 +1,189 @@
+import java.nio.*;
+import java.nio.charset.*;
+
+// Tokenizer for the command lines of the chat protocol. It works on the framed bytes of a line and only keeps offsets
+// into them, so parsing a command doesn't create any objects. One parser per event loop, it is not thread safe.
+class CommandParser
+{
+  
+  static final int UNKNOWN = 0;
+  static final int NICK = 1;
+  static final int JOIN = 2;
+  static final int LEAVE = 3;
+  static final int BYE = 4;
+  static final int PRIV = 5;
+  static final int STATS = 6;
+  static final int PONG = 7;
+  static final int BINARY = 8;
+  static final int COMPRESS = 9;
+  
+  static private final byte[][] verbs = {
+    null,
+    "/nick".getBytes(StandardCharsets.US_ASCII),
+    "/join".getBytes(StandardCharsets.US_ASCII),
+    "/leave".getBytes(StandardCharsets.US_ASCII),
+    "/bye".getBytes(StandardCharsets.US_ASCII),
+    "/priv".getBytes(StandardCharsets.US_ASCII),
+    "/stats".getBytes(StandardCharsets.US_ASCII),
+    "/pong".getBytes(StandardCharsets.US_ASCII),
+    "/binary".getBytes(StandardCharsets.US_ASCII),
+    "/compress".getBytes(StandardCharsets.US_ASCII)
+  };
+  
+  // Set by parse(): which command it was, how many arguments followed it (counting stops at 2) and where the first
+  // argument is in the line.
+  int command;
+  int args;
+  int argStart;
+  int argEnd;
+  
+  // Names seen recently, by hash of their bytes, so looking up the same nick or room again reuses its String.
+  private final byte[][] nameBytes;
+  private final String[] names;
+  
+  CommandParser()
+  {
+    this(256);
+  }
+  
+  // Remember up to the given number of names, a power of two. A parser per connection can get by with a few.
+  CommandParser(int names)
+  {
+    this.nameBytes = new byte[names][];
+    this.names = new String[names];
+  }
+  
+  // A line is a command if it starts with a single '/', "//" escapes a chat line that starts with '/'.
+  static boolean isCommand(ByteBuffer buf, int start, int end)
+  {
+    return buf.get(start) == '/' && (end - start < 2 || buf.get(start + 1) != '/');
+  }
+  
+  // Split the line buf[start, end) into its verb and arguments, whitespace separated like java.util.Scanner does.
+  void parse(ByteBuffer buf, int start, int end)
+  {
+    
+    int i = skip(buf, start, end, false);
+    
+    command = verb(buf, start, i);
+    args = 0;
+    argStart = -1;
+    argEnd = -1;
+    
+    while (args < 2)
+    {
+      
+      int from = skip(buf, i, end, true);
+      
+      if (from == end)
+      {
+        break;
+      }
+      
+      i = skip(buf, from, end, false);
+      
+      if (args == 0)
+      {
+        argStart = from;
+        argEnd = i;
+      }
+      
+      args++;
+    }
+    
+  }
+  
+  // The first argument as a String, reusing the last one made from the same bytes.
+  String argument(ByteBuffer buf)
+  {
+    return name(buf, argStart, argEnd);
+  }
+  
+  // buf[start, end) as a String, like argument(), for names that come in binary frames.
+  String name(ByteBuffer buf, int start, int end)
+  {
+    
+    int len = end - start;
+    int h = 0;
+    
+    for (int i = start; i < end; i++)
+    {
+      h = 31 * h + buf.get(i);
+    }
+    
+    int slot = (h ^ (h >>> 16)) & (names.length - 1);
+    
+    byte[] known = nameBytes[slot];
+    
+    if (known != null && known.length == len && same(buf, start, known))
+    {
+      return names[slot];
+    }
+    
+    byte[] bytes = new byte[len];
+    buf.get(start, bytes);
+    
+    nameBytes[slot] = bytes;
+    names[slot] = new String(bytes, StandardCharsets.UTF_8);
+    
+    return names[slot];
+    
+  }
+  
+  // Whether buf[start, end) could be a command's argument: not empty, no whitespace. Names in binary frames have to
+  // be, so text clients can still tell them from what follows.
+  static boolean isWord(ByteBuffer buf, int start, int end)
+  {
+    return start < end && skip(buf, start, end, false) == end;
+  }
+  
+  // Move from i over whitespace (or over anything but whitespace) and return where that stops.
+  static private int skip(ByteBuffer buf, int i, int end, boolean whitespace)
+  {
+    
+    while (i < end && isWhitespace(buf.get(i)) == whitespace)
+    {
+      i++;
+    }
+    
+    return i;
+    
+  }
+  
+  // ASCII whitespace as Character.isWhitespace sees it, which is what Scanner splits on.
+  static private boolean isWhitespace(byte b)
+  {
+    return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+  }
+  
+  static private int verb(ByteBuffer buf, int start, int end)
+  {
+    
+    for (int v = NICK; v <= COMPRESS; v++)
+    {
+      if (verbs[v].length == end - start && same(buf, start, verbs[v]))
+      {
+        return v;
+      }
+    }
+    
+    return UNKNOWN;
+    
+  }
+  
+  static private boolean same(ByteBuffer buf, int start, byte[] bytes)
+  {
+    
+    for (int i = 0; i < bytes.length; i++)
+    {
+      if (buf.get(start + i) != bytes[i])
+      {
+        return false;
+      }
+    }
+    
+    return true;
+    
+  }
+  
+}
@@ -0,0 +1,280 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+// Compresses what is sent to the connections that asked for it with /compress.
+//
+// Chat lines are short, and only compress well as part of a stream that can refer back to the lines before them. A
+// stream per connection would cost a deflate per member for every line of a room, so instead each room keeps one
+// deflate stream per protocol, every line is deflated into it once, and that same segment is queued for every member
+// that compresses. Everything else a connection gets, replies, private messages, notices and history, is deflated on
+// its own, with a reset Deflater, so it refers to nothing before it and can also be shared. Those under the threshold,
+// and those deflate doesn't make smaller, go as stored blocks instead.
+//
+// On the wire this makes two raw deflate streams (no zlib header) that never end, cut into chunks:
+//
+//   u8  channel  OWN for the connection's own stream, ROOM or FRESH for its room's
+//   u16 length   of what follows
+//   ...          the next bytes of that stream
+//
+// A client inflates each channel with an Inflater of its own, see Input. Every segment ends with a sync flush, so it
+// ends on a byte boundary, which is also what lets a new room stream (FRESH, for a joiner or a member that missed part
+// of it) follow an old one into the same Inflater.
+class Compressor
+{
+  
+  static final int OWN = 0;
+  static final int ROOM = 1;
+  static final int FRESH = 2;
+  
+  // What a chunk's channel and length take.
+  static final int HEADER = 3;
+  
+  // Most input deflated into one chunk. Deflate never makes it this much bigger, so a chunk's output always fits in
+  // its u16 length.
+  static private final int SLICE = 32768;
+  
+  private final BufferPool pool;
+  private final int level;
+  private final int threshold;
+  
+  // Deflaters for segments made on their own. One is only needed while compressing a buffer, and each holds on to a
+  // fair bit of native memory, so threads share them.
+  private final ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<>();
+  
+  // Bytes that went in and came out, and how many buffers were stored rather than deflated.
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong stored = new AtomicLong();
+  
+  Compressor(BufferPool pool, int level, int threshold)
+  {
+    this.pool = pool;
+    this.level = level;
+    this.threshold = threshold;
+  }
+  
+  // A Deflater for a room stream, that deflate(d, plain, channel) is then used with.
+  Deflater stream()
+  {
+    return new Deflater(level, true);
+  }
+  
+  // The segment of plain for a connection's own stream, made the first time it's asked for and released along with
+  // plain. It's good for as long as the caller holds plain, to keep it any longer retain() it.
+  BufferPool.Buffer compress(BufferPool.Buffer plain)
+  {
+    
+    synchronized (plain)
+    {
+      
+      if (plain.compressed == null)
+      {
+        plain.compressed = deflate(plain);
+      }
+      
+      return plain.compressed;
+      
+    }
+    
+  }
+  
+  // A new segment for a connection's own stream with the content of plain, with one reference to it.
+  BufferPool.Buffer deflate(BufferPool.Buffer plain)
+  {
+    
+    int length = plain.length();
+    int slices = Math.max(1, (length + SLICE - 1) / SLICE);
+    
+    // What it takes as stored blocks, a chunk of one block per slice.
+    int size = length + slices * (HEADER + 5);
+    
+    if (length >= threshold)
+    {
+      
+      Deflater d = idle.poll();
+      
+      if (d == null)
+      {
+        d = new Deflater(level, true);
+      }
+      
+      BufferPool.Buffer b = deflate(d, plain, OWN);
+      
+      d.reset();
+      idle.add(d);
+      
+      if (b.length() < size)
+      {
+        return b;
+      }
+      
+      // Didn't get any smaller.
+      bytesIn.addAndGet(-length);
+      bytesOut.addAndGet(-b.length());
+      b.release();
+    }
+    
+    BufferPool.Buffer b = pool.take(size);
+    ByteBuffer m = b.memory;
+    
+    // Stored blocks: a header byte (not the last block, no compression), then the length and its complement, both
+    // little-endian, then the bytes as they are.
+    for (int at = 0; at < length || at == 0; at += SLICE)
+    {
+      int slice = Math.min(SLICE, length - at);
+      
+      m.put((byte)OWN).putShort((short)(5 + slice));
+      m.put((byte)0);
+      m.put((byte)slice).put((byte)(slice >> 8));
+      m.put((byte)~slice).put((byte)(~slice >> 8));
+      m.put(m.position(), plain.memory, at, slice);
+      m.position(m.position() + slice);
+      
+      if (length == 0)
+      {
+        break;
+      }
+    }
+    
+    stored.incrementAndGet();
+    bytesIn.addAndGet(length);
+    bytesOut.addAndGet(m.position());
+    
+    return b.filled();
+    
+  }
+  
+  // plain deflated by d, which carries on from whatever it deflated before, ended with a sync flush and cut into
+  // chunks of channel. A new buffer with one reference to it.
+  BufferPool.Buffer deflate(Deflater d, BufferPool.Buffer plain, int channel)
+  {
+    
+    int length = plain.length();
+    int slices = Math.max(1, (length + SLICE - 1) / SLICE);
+    
+    BufferPool.Buffer b = pool.take(length + length / 8 + slices * (HEADER + 64));
+    ByteBuffer m = b.memory;
+    ByteBuffer in = plain.duplicate();
+    
+    for (int at = 0; at < length || at == 0; at += SLICE)
+    {
+      int slice = Math.min(SLICE, length - at);
+      int chunk = m.position();
+      
+      m.position(chunk + HEADER);
+      
+      d.setInput(in.limit(at + slice).position(at));
+      d.deflate(m, Deflater.SYNC_FLUSH);
+      
+      // There was room for all of it, or the stream would be broken from here on.
+      if (!d.needsInput() || !m.hasRemaining())
+      {
+        throw new IllegalStateException( "Deflated "+slice+" bytes into more than "+(m.position() - chunk) );
+      }
+      
+      m.put(chunk, (byte)channel).putShort(chunk + 1, (short)(m.position() - chunk - HEADER));
+      
+      if (length == 0)
+      {
+        break;
+      }
+    }
+    
+    bytesIn.addAndGet(length);
+    bytesOut.addAndGet(m.position());
+    
+    return b.filled();
+    
+  }
+  
+  // Which channel a segment made here starts with.
+  static int channel(BufferPool.Buffer segment)
+  {
+    return segment.memory.get(0);
+  }
+  
+  // What compressing has done so far, for the server's stats.
+  Map<String, Long> stats()
+  {
+    
+    Map<String, Long> stats = new LinkedHashMap<>();
+    
+    stats.put("bytes.in", bytesIn.get());
+    stats.put("bytes.out", bytesOut.get());
+    stats.put("stored", stored.get());
+    
+    return stats;
+    
+  }
+  
+  // The client's end: takes the chunks as they are read, in pieces of any size, and gives back the plain bytes of both
+  // channels in the order they came. Segments are whole lines (or frames), so the channels don't mix within one.
+  static class Input
+  {
+    
+    private final Inflater own = new Inflater(true);
+    private final Inflater room = new Inflater(true);
+    
+    // The chunk being read, header included, kept between reads when one ends in the middle of it.
+    private final ByteBuffer chunk = ByteBuffer.allocate(HEADER + 65535);
+    
+    private byte[] plain = new byte[65536];
+    
+    // Inflate every complete chunk in read, and keep what there is of the last one if it isn't. The plain bytes are
+    // only good until the next call.
+    ByteBuffer inflate(ByteBuffer read) throws IOException
+    {
+      
+      int end = 0;
+      
+      while (read.hasRemaining())
+      {
+        // The header first, then as much of the chunk as its length says.
+        int length = chunk.position() < HEADER ? HEADER : HEADER + (chunk.getShort(1) & 0xFFFF);
+        int n = Math.min(length - chunk.position(), read.remaining());
+        
+        chunk.put(chunk.position(), read, read.position(), n);
+        chunk.position(chunk.position() + n);
+        read.position(read.position() + n);
+        
+        if (chunk.position() < HEADER || chunk.position() < HEADER + (chunk.getShort(1) & 0xFFFF))
+        {
+          continue;
+        }
+        
+        Inflater inflater = chunk.get(0) == OWN ? own : room;
+        inflater.setInput(chunk.array(), HEADER, chunk.position() - HEADER);
+        
+        try
+        {
+          do
+          {
+            if (end == plain.length)
+            {
+              plain = Arrays.copyOf(plain, plain.length * 2);
+            }
+            
+            end += inflater.inflate(plain, end, plain.length - end);
+          }
+          while (!inflater.needsInput() || end == plain.length);
+        }
+        
+        catch( DataFormatException de )
+        {
+          throw new IOException( "Corrupt compressed stream", de );
+        }
+        
+        chunk.clear();
+      }
+      
+      return ByteBuffer.wrap(plain, 0, end);
+      
+    }
+    
+  }
+  
+}
@@ -0,0 +1,255 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Append-only log of the chat lines sent to every room, so room history survives a restart.
+//
+// The log is a directory of fixed size segment files, each written through a memory mapping. Event loops only hand
+// lines over to a queue, a background thread copies them into the mapping, so a slow disk never holds up a loop. A
+// record is the length of what follows (an int), the room name's length (a short), the room name and the line as it
+// was sent to the room. The length goes in last, so a record that was cut short reads as the end of the segment.
+class HistoryLog
+{
+  
+  // Called for every line found in the log when recovering, oldest first. The buffer is only valid during the call.
+  interface Replay
+  {
+    void line(String room, ByteBuffer line);
+  }
+  
+  static private class Entry
+  {
+    
+    public final String room;
+    public final BufferPool.Buffer line;
+    
+    public Entry(String room, BufferPool.Buffer line)
+    {
+      this.room = room;
+      this.line = line;
+    }
+    
+  }
+  
+  private final Path dir;
+  private final int segmentSize;
+  private final int segments;
+  
+  private final ArrayBlockingQueue<Entry> queue;
+  
+  // The segment being written, and its number. Only the writer thread touches them.
+  private MappedByteBuffer segment;
+  private long sequence;
+  
+  public HistoryLog(Path dir, int segmentSize, int segments, int queueSize)
+  {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.segments = segments;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+  }
+  
+  // Read back every line in the log, before start().
+  public void recover(Replay replay) throws IOException
+  {
+    
+    Files.createDirectories(dir);
+    
+    for (Path file : segments())
+    {
+      
+      try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ))
+      {
+        MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        
+        while (mapped.remaining() >= 4)
+        {
+          int length = mapped.getInt();
+          
+          // Zero is where writing stopped, anything that doesn't fit is a record that was cut short.
+          if (length < 2 || length > mapped.remaining())
+          {
+            break;
+          }
+          
+          int end = mapped.position() + length;
+          
+          byte[] room = new byte[mapped.getShort()];
+          mapped.get(room);
+          
+          ByteBuffer line = mapped.slice(mapped.position(), end - mapped.position());
+          replay.line(new String(room, StandardCharsets.UTF_8), line);
+          
+          mapped.position(end);
+        }
+      }
+      
+      sequence = Math.max(sequence, number(file));
+    }
+    
+  }
+  
+  // Open a fresh segment and start the writer thread.
+  public void start() throws IOException
+  {
+    
+    roll();
+    
+    Thread writer = new Thread(this::write, "history");
+    writer.setDaemon(true);
+    writer.start();
+    
+  }
+  
+  // Queue a line sent to room for the log, without blocking, holding a reference to it until it's written. False if
+  // the writer is that far behind, the line is then only in memory.
+  public boolean append(String room, BufferPool.Buffer line)
+  {
+    
+    if (queue.offer(new Entry(room, line.retain())))
+    {
+      return true;
+    }
+    
+    line.release();
+    
+    return false;
+    
+  }
+  
+  private void write()
+  {
+    
+    try
+    {
+      
+      while (true)
+      {
+        Entry e = queue.take();
+        
+        try
+        {
+          write(e);
+        }
+        
+        finally
+        {
+          e.line.release();
+        }
+      }
+      
+    }
+    
+    catch( InterruptedException ie )
+    {
+      return;
+    }
+    
+    catch( IOException ie )
+    {
+      System.err.println( "History log stopped: "+ie );
+    }
+    
+  }
+  
+  // Copy one line into the segment, moving on to a new segment if it doesn't fit.
+  private void write(Entry e) throws IOException
+  {
+    
+    byte[] room = e.room.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer line = e.line.duplicate();
+    
+    int length = 2 + room.length + line.remaining();
+    
+    // Can't be, unless the segments were made smaller than a line.
+    if (4 + length > segmentSize)
+    {
+      return;
+    }
+    
+    if (4 + length > segment.remaining())
+    {
+      roll();
+    }
+    
+    int start = segment.position();
+    
+    segment.position(start + 4);
+    segment.putShort((short)room.length);
+    segment.put(room);
+    segment.put(line);
+    
+    segment.putInt(start, length);
+    
+  }
+  
+  // Finish the current segment, start the next one and drop the oldest ones beyond the number to keep.
+  private void roll() throws IOException
+  {
+    
+    if (segment != null)
+    {
+      segment.force();
+    }
+    
+    sequence++;
+    
+    Path file = dir.resolve(String.format("%012d.log", sequence));
+    
+    try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      // The mapping stays valid after the channel is closed.
+      segment = fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+    
+    List<Path> all = segments();
+    
+    for (int i = 0; i < all.size() - segments; i++)
+    {
+      Files.deleteIfExists(all.get(i));
+    }
+    
+  }
+  
+  // The segment files, oldest first.
+  private List<Path> segments() throws IOException
+  {
+    
+    List<Path> files = new ArrayList<>();
+    
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.log"))
+    {
+      for (Path p : ds)
+      {
+        files.add(p);
+      }
+    }
+    
+    files.sort(Comparator.comparingLong(HistoryLog::number));
+    
+    return files;
+    
+  }
+  
+  static private long number(Path file)
+  {
+    
+    String name = file.getFileName().toString();
+    
+    try
+    {
+      return Long.parseLong(name.substring(0, name.length() - 4));
+    }
+    
+    catch( NumberFormatException nfe )
+    {
+      return 0;
+    }
+    
+  }
+  
+}
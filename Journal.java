@@ -0,0 +1,484 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// What happens to connections, as fixed size binary records: accepts, closes, evictions, timeouts and errors. The
+// threads that serve connections only claim a slot of a ring and fill it in, which never blocks and allocates nothing
+// but the copy of the peer's four address bytes that accepts and rejections take. A background thread takes the
+// records out in order and appends them to a directory of rotating files, or without one prints them. A full ring
+// drops the record and counts it, the writer notes how many in the journal.
+//
+// A record is 32 bytes, big-endian:
+//
+//   i64 time     nanoseconds since the epoch
+//   i16 type     one of the constants below
+//   i16 loop     the event loop it happened on, -1 for other threads
+//   i32 id       the client's id, 0 if there is none
+//   i64 a, b     depend on the type, see text()
+//
+// java Journal <dir or file>... prints the records of a journal directory, or of the given files, as text.
+class Journal
+{
+  
+  static final int ACCEPTED = 1;      // a address, b port
+  static final int REJECTED = 2;      // a address, b port
+  static final int CLOSED = 3;        // a one of the reasons below
+  static final int EVICTED = 4;
+  static final int TIMED_OUT = 5;
+  static final int READ_ERROR = 6;    // a and b the first 16 characters of the error
+  static final int WRITE_ERROR = 7;
+  static final int CLOSE_ERROR = 8;
+  static final int ACCEPT_ERROR = 9;
+  static final int DROPPED = 10;      // a records the ring had no room for since the last of these
+  static final int LANE_ERROR = 11;   // a fan-out task threw, a and b the start of what
+  static final int LOOP_ENDED = 12;   // an event loop stopped on an error, a and b the start of it
+  
+  static private final String[] TYPES = {
+    "?", "accepted", "rejected", "closed", "evicted", "timed-out", "read-error", "write-error", "close-error",
+    "accept-error", "dropped", "lane-error", "loop-ended"
+  };
+  
+  // Why a connection was closed.
+  static final int PEER = 0;
+  static final int BYE = 1;
+  static final int RESET = 2;
+  
+  static private final String[] REASONS = { "by peer", "after bye", "reset" };
+  
+  static final int RECORD = 32;
+  
+  // The records, and for every slot the sequence number of the record in it plus one once it's filled in.
+  private final ByteBuffer ring;
+  private final AtomicLongArray filled;
+  private final int mask;
+  
+  // Next sequence number to claim, and the next one the writer takes out.
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  
+  // Where the records go, null to print them instead, and how big a file gets and how many are kept.
+  private final Path dir;
+  private final long fileSize;
+  private final int files;
+  
+  // System.nanoTime() and the wall clock at the same moment, so records get wall clock times at nanoTime's cost.
+  private final long nanoBase = System.nanoTime();
+  private final long epochBase = System.currentTimeMillis() * 1000000L;
+  
+  // Only touched by the writer thread.
+  private FileChannel file;
+  private long sequence;
+  private long reported;
+  
+  // slots is rounded up to a power of two.
+  Journal(int slots, Path dir, long fileSize, int files)
+  {
+    
+    int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+    
+    this.ring = ByteBuffer.allocateDirect(size * RECORD);
+    this.filled = new AtomicLongArray(size);
+    this.mask = size - 1;
+    this.dir = dir;
+    this.fileSize = fileSize;
+    this.files = files;
+    
+  }
+  
+  void start()
+  {
+    
+    Thread writer = new Thread(this::write, "journal");
+    writer.setDaemon(true);
+    writer.start();
+    
+  }
+  
+  // Add a record, or count it as dropped if the ring is full.
+  void record(int type, int loop, int id, long a, long b)
+  {
+    
+    long seq;
+    
+    do
+    {
+      seq = head.get();
+      
+      if (seq - tail.get() > mask)
+      {
+        dropped.incrementAndGet();
+        return;
+      }
+    }
+    while (!head.compareAndSet(seq, seq + 1));
+    
+    int at = (int)(seq & mask) * RECORD;
+    
+    ring.putLong(at, epochBase + System.nanoTime() - nanoBase);
+    ring.putShort(at + 8, (short)type);
+    ring.putShort(at + 10, (short)loop);
+    ring.putInt(at + 12, id);
+    ring.putLong(at + 16, a);
+    ring.putLong(at + 24, b);
+    
+    filled.lazySet((int)(seq & mask), seq + 1);
+    
+  }
+  
+  // A record about the connection's peer, with its address and port. An IPv6 peer goes in without an address.
+  void record(int type, int loop, int id, SocketChannel sc)
+  {
+    
+    long address = -1;
+    long port = 0;
+    
+    try
+    {
+      // The channel keeps its peer's address, only the bytes of it are copied.
+      InetSocketAddress remote = (InetSocketAddress)sc.getRemoteAddress();
+      
+      if (remote != null && remote.getAddress() instanceof Inet4Address)
+      {
+        byte[] bytes = remote.getAddress().getAddress();
+        
+        address = (bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+      }
+      
+      port = remote != null ? remote.getPort() : 0;
+    }
+    
+    catch( IOException ie )
+    {
+      // Closed already, it goes in without an address.
+    }
+    
+    record(type, loop, id, address, port);
+    
+  }
+  
+  // A record of an error, with the start of its message.
+  void record(int type, int loop, int id, Throwable e)
+  {
+    
+    String text = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    
+    record(type, loop, id, chars(text, 0), chars(text, 8));
+    
+  }
+  
+  // Eight characters of text from from on, a byte each, zero padded.
+  static private long chars(String text, int from)
+  {
+    
+    long v = 0;
+    
+    for (int i = from; i < from + 8; i++)
+    {
+      v = v << 8 | (i < text.length() ? text.charAt(i) & 0x7F : 0);
+    }
+    
+    return v;
+    
+  }
+  
+  // What the writer took out and what was dropped, for the server's stats.
+  Map<String, Long> stats()
+  {
+    
+    Map<String, Long> stats = new LinkedHashMap<>();
+    
+    stats.put("written", written.get());
+    stats.put("dropped", dropped.get());
+    stats.put("pending", head.get() - tail.get());
+    
+    return stats;
+    
+  }
+  
+  // How long the writer sleeps when it finds nothing, doubling while the journal stays idle, in nanoseconds.
+  static private final long NAP = 1000000;
+  static private final long LONGEST_NAP = 100000000;
+  
+  // The writer: takes out what's filled in, in order, and has it written a batch at a time.
+  private void write()
+  {
+    
+    ByteBuffer batch = ByteBuffer.allocateDirect(RECORD * 1024);
+    long nap = NAP;
+    
+    try
+    {
+      
+      if (dir != null)
+      {
+        Files.createDirectories(dir);
+        roll();
+      }
+      
+      while (true)
+      {
+        
+        long seq = tail.get();
+        
+        // Nothing filled in yet, the claimer may be halfway through it.
+        if (filled.get((int)(seq & mask)) != seq + 1)
+        {
+          flush(batch);
+          LockSupport.parkNanos(nap);
+          nap = Math.min(nap * 2, LONGEST_NAP);
+          continue;
+        }
+        
+        nap = NAP;
+        
+        if (!batch.hasRemaining())
+        {
+          flush(batch);
+        }
+        
+        int at = (int)(seq & mask) * RECORD;
+        
+        batch.put(batch.position(), ring, at, RECORD);
+        batch.position(batch.position() + RECORD);
+        
+        tail.lazySet(seq + 1);
+        written.incrementAndGet();
+        
+        // How many it missed, right after the record before them.
+        long lost = dropped.get();
+        
+        if (lost > reported && batch.hasRemaining())
+        {
+          int d = batch.position();
+          
+          batch.putLong(d, epochBase + System.nanoTime() - nanoBase);
+          batch.putShort(d + 8, (short)DROPPED);
+          batch.putShort(d + 10, (short)-1);
+          batch.putInt(d + 12, 0);
+          batch.putLong(d + 16, lost - reported);
+          batch.putLong(d + 24, 0);
+          batch.position(d + RECORD);
+          
+          reported = lost;
+        }
+      }
+      
+    }
+    
+    catch( IOException ie )
+    {
+      System.err.println( "Journal stopped: "+ie );
+    }
+    
+  }
+  
+  // Write out the batch, to the current file or as text.
+  private void flush(ByteBuffer batch) throws IOException
+  {
+    
+    if (batch.position() == 0)
+    {
+      return;
+    }
+    
+    batch.flip();
+    
+    if (file == null)
+    {
+      for (int at = 0; at < batch.limit(); at += RECORD)
+      {
+        System.out.println( text(batch, at) );
+      }
+    }
+    
+    else
+    {
+      if (file.position() + batch.remaining() > fileSize)
+      {
+        roll();
+      }
+      
+      while (batch.hasRemaining())
+      {
+        file.write(batch);
+      }
+    }
+    
+    batch.clear();
+    
+  }
+  
+  // Close the current file, start the next one and drop the oldest ones beyond the number to keep.
+  private void roll() throws IOException
+  {
+    
+    if (file != null)
+    {
+      file.close();
+    }
+    
+    List<Path> all = files(dir);
+    
+    if (!all.isEmpty())
+    {
+      sequence = Math.max(sequence, number(all.get(all.size() - 1)));
+    }
+    
+    sequence++;
+    
+    file = FileChannel.open(dir.resolve(String.format("%012d.journal", sequence)), StandardOpenOption.CREATE_NEW,
+      StandardOpenOption.WRITE);
+    
+    all = files(dir);
+    
+    for (int i = 0; i < all.size() - files; i++)
+    {
+      Files.deleteIfExists(all.get(i));
+    }
+    
+  }
+  
+  // The journal files in dir, oldest first.
+  static private List<Path> files(Path dir) throws IOException
+  {
+    
+    List<Path> files = new ArrayList<>();
+    
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.journal"))
+    {
+      for (Path p : ds)
+      {
+        files.add(p);
+      }
+    }
+    
+    files.sort(Comparator.comparingLong(Journal::number));
+    
+    return files;
+    
+  }
+  
+  static private long number(Path file)
+  {
+    
+    String name = file.getFileName().toString();
+    
+    try
+    {
+      return Long.parseLong(name.substring(0, name.length() - 8));
+    }
+    
+    catch( NumberFormatException nfe )
+    {
+      return 0;
+    }
+    
+  }
+  
+  // The record at buf[at] as a line of text.
+  static String text(ByteBuffer buf, int at)
+  {
+    
+    long time = buf.getLong(at);
+    int type = buf.getShort(at + 8);
+    int loop = buf.getShort(at + 10);
+    int id = buf.getInt(at + 12);
+    long a = buf.getLong(at + 16);
+    long b = buf.getLong(at + 24);
+    
+    StringBuilder line = new StringBuilder();
+    
+    line.append(java.time.Instant.ofEpochSecond(time / 1000000000L, time % 1000000000L));
+    line.append(loop >= 0 ? " loop-"+loop : " -");
+    line.append(" ").append(type > 0 && type < TYPES.length ? TYPES[type] : "type-"+type);
+    
+    if (id != 0)
+    {
+      line.append(" u").append(id);
+    }
+    
+    switch (type)
+    {
+      case ACCEPTED:
+      case REJECTED:
+        
+        line.append(" ").append(a < 0 ? "?" : (a >> 24 & 255)+"."+(a >> 16 & 255)+"."+(a >> 8 & 255)+"."+(a & 255));
+        line.append(":").append(b);
+        break;
+      
+      case CLOSED:
+        
+        line.append(" ").append(a >= 0 && a < REASONS.length ? REASONS[(int)a] : "?");
+        break;
+      
+      case READ_ERROR:
+      case WRITE_ERROR:
+      case CLOSE_ERROR:
+      case ACCEPT_ERROR:
+      case LANE_ERROR:
+      case LOOP_ENDED:
+        
+        line.append(" ");
+        
+        for (int shift = 120; shift >= 0; shift -= 8)
+        {
+          int c = (int)((shift >= 64 ? a >>> (shift - 64) : b >>> shift) & 0x7F);
+          
+          if (c != 0)
+          {
+            line.append((char)c);
+          }
+        }
+        
+        break;
+      
+      case DROPPED:
+        
+        line.append(" ").append(a);
+        break;
+    }
+    
+    return line.toString();
+    
+  }
+  
+  static public void main( String args[] ) throws IOException
+  {
+    
+    if (args.length == 0)
+    {
+      System.err.println( "Usage: java Journal <dir or file>..." );
+      return;
+    }
+    
+    for (String arg : args)
+    {
+      
+      Path path = Paths.get(arg);
+      
+      for (Path p : Files.isDirectory(path) ? files(path) : List.of(path))
+      {
+        
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ))
+        {
+          MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+          
+          for (int at = 0; at + RECORD <= mapped.limit(); at += RECORD)
+          {
+            System.out.println( text(mapped, at) );
+          }
+        }
+      }
+    }
+    
+  }
+  
+}
@@ -0,0 +1,126 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+// A fixed number of lanes on a pool of worker threads. What is submitted to one lane runs one task at a time, in the
+// order it was submitted, and different lanes run at the same time on whichever workers are free. Whatever always
+// goes to the same lane is thus done in order without any locking, like the lines queued for one connection.
+//
+// Each lane is run by one worker at a time, for at most TURN tasks before it makes way for the others, so a lane
+// with a lot to do doesn't hold a worker for long.
+class Lanes
+{
+  
+  static private final int TURN = 64;
+  
+  private final ForkJoinPool pool;
+  private final Lane[] lanes;
+  
+  // Told about a task that threw, the lane goes on with the next.
+  private final Consumer<RuntimeException> failed;
+  
+  // Tasks submitted and not run yet, across all lanes.
+  private final AtomicLong pending = new AtomicLong();
+  
+  private class Lane implements Runnable
+  {
+    
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    
+    // True while the lane is waiting for a worker or running, so one worker at a time runs it.
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    
+    public void run()
+    {
+      
+      Runnable task;
+      
+      for (int i = 0; i < TURN && (task = tasks.poll()) != null; i++)
+      {
+        pending.decrementAndGet();
+        
+        try
+        {
+          task.run();
+        }
+        
+        catch( RuntimeException re )
+        {
+          failed.accept(re);
+        }
+      }
+      
+      scheduled.set(false);
+      
+      // More came in, or this turn ran out.
+      schedule();
+      
+    }
+    
+    private void schedule()
+    {
+      
+      if (!tasks.isEmpty() && scheduled.compareAndSet(false, true))
+      {
+        pool.execute(this);
+      }
+      
+    }
+    
+  }
+  
+  // lanes lanes over threads daemon threads, named name-0, name-1 and so on.
+  Lanes(String name, int threads, int lanes, Consumer<RuntimeException> failed)
+  {
+    
+    ForkJoinPool.ForkJoinWorkerThreadFactory factory = p -> {
+      
+      ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+      
+      t.setName(name+"-"+t.getPoolIndex());
+      t.setDaemon(true);
+      
+      return t;
+      
+    };
+    
+    // asyncMode: lanes are scheduled FIFO, and never join each other.
+    this.pool = new ForkJoinPool(threads, factory, null, true);
+    this.lanes = new Lane[lanes];
+    this.failed = failed;
+    
+    for (int i = 0; i < lanes; i++)
+    {
+      this.lanes[i] = new Lane();
+    }
+    
+  }
+  
+  // Run task after everything submitted to lane before it.
+  void submit(int lane, Runnable task)
+  {
+    
+    Lane l = lanes[lane];
+    
+    pending.incrementAndGet();
+    l.tasks.add(task);
+    l.schedule();
+    
+  }
+  
+  int size()
+  {
+    return lanes.length;
+  }
+  
+  int threads()
+  {
+    return pool.getParallelism();
+  }
+  
+  long pending()
+  {
+    return pending.get();
+  }
+  
+}
@@ -0,0 +1,325 @@
+import java.io.*;
+import java.nio.*;
+
+// Splits the bytes read from one connection into LF terminated lines, without decoding them. After binary() it
+// splits them into the length-prefixed frames of the binary protocol instead.
+//
+// Reads normally go into a buffer shared by the whole event loop, and complete lines are handed out straight from it.
+// Only when a read ends in the middle of a line are those last bytes kept, in a small per connection carry buffer, and
+// the next read then goes right after them in the carry buffer so the line is completed in place. Carry buffers are
+// borrowed from a BufferPool and given back once the line is complete.
+//
+// A handler may also stop() the framing after a line, as flood control does. What follows it is then held in the
+// carry buffer, unsearched, until resume() frames it.
+class LineFramer
+{
+  
+  // Called for every complete line, with the LF included. The buffer is only valid during the call.
+  interface Handler
+  {
+    void line(ByteBuffer buf, int start, int end) throws IOException;
+    
+    // A line went over the maximum length, its bytes are being dropped up to the next LF (or, for a frame, up to
+    // the end of it).
+    void overflow() throws IOException;
+    
+    // Called for every complete frame once in binary mode, from its opcode on. Handlers that never switch to binary
+    // don't get any.
+    default void frame(ByteBuffer buf, int start, int end) throws IOException
+    {
+    }
+  }
+  
+  // Don't read into the carry buffer with less room than this, grow it instead.
+  static private final int MIN_READ = 512;
+  
+  private final int maxLine;
+  private final BufferPool pool;
+  
+  // Partial line waiting for the rest of its bytes, in write mode, and the pooled buffer it's in. Null when nothing
+  // is pending.
+  private ByteBuffer carry;
+  private BufferPool.Buffer carrying;
+  
+  // How many bytes at the front of the carry buffer were carried over, they have been searched for LF already.
+  private int carried;
+  
+  // Set by stop() during a line, framing ends after it.
+  private boolean stopping;
+  
+  // Set after an overflow, bytes are thrown away until the next LF.
+  private boolean discarding;
+  
+  // Frames rather than lines, and how many bytes of an over-long frame are still to be thrown away.
+  private boolean binary;
+  private int skipping;
+  
+  public LineFramer(int maxLine, BufferPool pool)
+  {
+    this.maxLine = maxLine;
+    this.pool = pool;
+  }
+  
+  // Split what comes from now on into binary frames, even the rest of a read that is being framed.
+  public void binary()
+  {
+    binary = true;
+  }
+  
+  // Stop framing after the line or frame being handled, and hold the rest of the read until resume().
+  public void stop()
+  {
+    stopping = true;
+  }
+  
+  // Frame what stop() held back, as if it had just been read. It may stop again.
+  public void resume(Handler handler) throws IOException
+  {
+    
+    if (carry != null)
+    {
+      frame(carry, handler);
+    }
+    
+  }
+  
+  // The buffer the next read should go to, the carry buffer if part of a line is pending or the shared one otherwise.
+  public ByteBuffer target(ByteBuffer shared)
+  {
+    
+    if (carry == null)
+    {
+      shared.clear();
+      return shared;
+    }
+    
+    // Make room for a decent read, up to the maximum line length.
+    if (carry.remaining() < MIN_READ && carry.capacity() < maxLine)
+    {
+      BufferPool.Buffer bigger = pool.take(Math.min(maxLine, carry.capacity() * 2));
+      
+      carry.flip();
+      bigger.memory.put(carry);
+      
+      carrying.release();
+      carrying = bigger;
+      carry = bigger.memory;
+    }
+    
+    return carry;
+    
+  }
+  
+  // Hand every complete line of what was just read into target to the handler, and keep the rest for later.
+  public void frame(ByteBuffer target, Handler handler) throws IOException
+  {
+    
+    int end = target.position();
+    int start = 0;
+    
+    if (binary)
+    {
+      frames(target, start, end, handler);
+      return;
+    }
+    
+    // When completing a pending line, only the newly read bytes need to be searched.
+    int from = (target == carry) ? carried : 0;
+    
+    for (int i = from; i < end; i++)
+    {
+      
+      if (target.get(i) != '\n')
+      {
+        continue;
+      }
+      
+      if (discarding)
+      {
+        // The tail of an over-long line, drop it and start over after the LF.
+        discarding = false;
+      }
+      
+      else if (i + 1 - start > maxLine)
+      {
+        handler.overflow();
+      }
+      
+      else
+      {
+        handler.line(target, start, i + 1);
+        
+        if (stopping)
+        {
+          hold(target, i + 1, end);
+          return;
+        }
+        
+        // That line switched to binary, the rest are frames.
+        if (binary)
+        {
+          frames(target, i + 1, end, handler);
+          return;
+        }
+      }
+      
+      start = i + 1;
+    }
+    
+    keep(target, start, end, handler);
+    
+  }
+  
+  // Hand every complete frame in target[start, end) to the handler, and keep the rest.
+  private void frames(ByteBuffer target, int start, int end, Handler handler) throws IOException
+  {
+    
+    // The tail of an over-long frame.
+    int skipped = Math.min(skipping, end - start);
+    
+    skipping -= skipped;
+    start += skipped;
+    
+    while (end - start >= 2)
+    {
+      
+      int length = target.getShort(start) & 0xFFFF;
+      
+      if (length + 2 > maxLine)
+      {
+        handler.overflow();
+        
+        skipping = length + 2 - Math.min(length + 2, end - start);
+        start += Math.min(length + 2, end - start);
+        continue;
+      }
+      
+      if (end - start < length + 2)
+      {
+        break;
+      }
+      
+      // An empty frame has no opcode, and is ignored.
+      if (length > 0)
+      {
+        handler.frame(target, start + 2, start + 2 + length);
+      }
+      
+      start += length + 2;
+      
+      if (stopping)
+      {
+        hold(target, start, end);
+        return;
+      }
+    }
+    
+    keep(target, start, end, handler);
+    
+  }
+  
+  // Keep target[start, end) as the pending partial line.
+  private void keep(ByteBuffer target, int start, int end, Handler handler) throws IOException
+  {
+    
+    int rest = end - start;
+    
+    if (discarding || rest == 0)
+    {
+      
+      // Nothing to carry over, and the carry buffer can go until a read ends mid-line again.
+      release();
+      return;
+    }
+    
+    if (rest >= maxLine)
+    {
+      
+      // No LF in maxLine bytes, this line is too long whatever comes next.
+      handler.overflow();
+      
+      discarding = true;
+      release();
+      return;
+    }
+    
+    if (target == carry)
+    {
+      
+      // Move the partial line to the front, if it isn't there already.
+      if (start > 0)
+      {
+        carry.limit(end);
+        carry.position(start);
+        carry.compact();
+      }
+    }
+    
+    else
+    {
+      
+      // The shared buffer is reused by the next connection, so the partial line has to be copied out of it.
+      carrying = pool.take(Math.min(maxLine, Math.max(MIN_READ * 2, Integer.highestOneBit(rest) * 2)));
+      carry = carrying.memory;
+      
+      target.limit(end);
+      target.position(start);
+      carry.put(target);
+    }
+    
+    carried = rest;
+    
+  }
+  
+  // Hold target[start, end), which may be many lines and more than maxLine, in the carry buffer after stop(). None
+  // of it has been searched.
+  private void hold(ByteBuffer target, int start, int end)
+  {
+    
+    int rest = end - start;
+    
+    stopping = false;
+    
+    if (rest == 0)
+    {
+      release();
+      return;
+    }
+    
+    if (target == carry)
+    {
+      carry.limit(end);
+      carry.position(start);
+      carry.compact();
+    }
+    
+    else
+    {
+      carrying = pool.take(Math.max(MIN_READ * 2, Integer.highestOneBit(rest) * 2));
+      carry = carrying.memory;
+      
+      target.limit(end);
+      target.position(start);
+      carry.put(target);
+    }
+    
+    carried = 0;
+    
+  }
+  
+  // Give back the carry buffer, when the line is done or the connection is.
+  public void release()
+  {
+    
+    if (carrying != null)
+    {
+      carrying.release();
+    }
+    
+    carrying = null;
+    carry = null;
+    carried = 0;
+    
+  }
+  
+}
@@ -0,0 +1,260 @@
+import java.util.concurrent.atomic.*;
+
+// Counters and latency histograms of one event loop. Only the loop's own thread updates them, and it does so with
+// ordered stores (lazySet) instead of atomic read-modify-writes, so counting costs about as much as a plain field
+// update. Any thread may read them at any time, that's how JMX and /stats see them.
+//
+// Metrics created as shared may be updated by many threads, like those of the thread per connection engine, and pay
+// for real atomic adds instead.
+class Metrics
+{
+  
+  static final int ACCEPTED = 0;
+  static final int CLOSED = 1;
+  static final int LINES_IN = 2;
+  static final int BYTES_IN = 3;
+  static final int MESSAGES_OUT = 4;
+  static final int BYTES_OUT = 5;
+  static final int HISTORY_DROPPED = 6;
+  static final int TIMED_OUT = 7;
+  static final int DROPPED_OLDEST = 8;
+  static final int DROPPED_NEWEST = 9;
+  static final int DROPPED_GLOBAL = 10;
+  static final int EVICTED = 11;
+  static final int DROPPED_ROOM = 12;
+  static final int ROOMS_MOVED = 13;
+  static final int FANOUT_PARALLEL = 14;
+  static final int REJECTED = 15;
+  static final int PAUSED = 16;
+  
+  static final String[] COUNTERS = {
+    "accepted", "closed", "lines.in", "bytes.in", "messages.out", "bytes.out", "history.dropped", "timed.out",
+    "dropped.oldest", "dropped.newest", "dropped.global", "evicted", "dropped.room", "rooms.moved",
+    "fanout.parallel", "rejected", "paused"
+  };
+  
+  // Why an ERROR was sent back.
+  static final int TOO_LONG = 0;
+  static final int ARGUMENTS = 1;
+  static final int UNKNOWN_COMMAND = 2;
+  static final int NICK_TAKEN = 3;
+  static final int NO_NICK = 4;
+  static final int NOT_IN_ROOM = 5;
+  static final int NO_SUCH_NICK = 6;
+  static final int DENIED = 7;
+  static final int TOO_LATE = 8;
+  static final int UNREACHABLE = 9;
+  static final int ROOM_BUSY = 10;
+  static final int FLOODED = 11;
+  
+  static final String[] CAUSES = {
+    "too-long", "arguments", "unknown-command", "nick-taken", "no-nick", "not-in-room", "no-such-nick", "denied",
+    "too-late", "unreachable", "room-busy", "flooded"
+  };
+  
+  private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+  private final AtomicLongArray errors = new AtomicLongArray(CAUSES.length);
+  
+  // Each counter's increase per second over the last whole second, and where the counters were when it started.
+  private final AtomicLongArray rates = new AtomicLongArray(COUNTERS.length);
+  private final long[] last = new long[COUNTERS.length];
+  private long second = System.nanoTime();
+  
+  private final boolean shared;
+  
+  // Time the loop spent handling what one select() returned.
+  final Histogram loopTime;
+  
+  // Time spent queueing one chat line for everybody in its room.
+  final Histogram fanOutTime;
+  
+  Metrics()
+  {
+    this(false);
+  }
+  
+  Metrics(boolean shared)
+  {
+    this.shared = shared;
+    this.loopTime = new Histogram(shared);
+    this.fanOutTime = new Histogram(shared);
+  }
+  
+  void add(int counter, long n)
+  {
+    increment(counters, counter, n, shared);
+  }
+  
+  // For counters that other threads update too, like the slow consumer ones, which count on the recipient's loop
+  // but are bumped by whichever loop is queueing. Those counters must only ever be updated this way.
+  void addShared(int counter, long n)
+  {
+    counters.getAndAdd(counter, n);
+  }
+  
+  void error(int cause)
+  {
+    increment(errors, cause, 1, shared);
+  }
+  
+  long get(int counter)
+  {
+    return counters.get(counter);
+  }
+  
+  long rate(int counter)
+  {
+    return rates.get(counter);
+  }
+  
+  long errors(int cause)
+  {
+    return errors.get(cause);
+  }
+  
+  static private void increment(AtomicLongArray array, int i, long n, boolean shared)
+  {
+    
+    if (shared)
+    {
+      array.getAndAdd(i, n);
+    }
+    
+    else
+    {
+      array.lazySet(i, array.get(i) + n);
+    }
+    
+  }
+  
+  // Called by the loop on every iteration (by a single thread in any case), the rates are worked out once a second.
+  void tick(long now)
+  {
+    
+    long elapsed = now - second;
+    
+    if (elapsed < 1000000000L)
+    {
+      return;
+    }
+    
+    for (int i = 0; i < last.length; i++)
+    {
+      long value = counters.get(i);
+      
+      rates.lazySet(i, (value - last[i]) * 1000000000L / elapsed);
+      last[i] = value;
+    }
+    
+    second = now;
+    
+  }
+  
+  // Nanosecond latencies in log-linear buckets, 8 per power of two (within about 10% of the real value). Recording
+  // is a bucket increment, and histograms of several loops add up bucket by bucket.
+  static class Histogram
+  {
+    
+    static final int BUCKETS = 64 * 8;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    
+    private final boolean shared;
+    
+    Histogram(boolean shared)
+    {
+      this.shared = shared;
+    }
+    
+    void record(long ns)
+    {
+      
+      increment(counts, index(Math.max(0, ns)), 1, shared);
+      
+      if (ns > max.get())
+      {
+        if (shared)
+        {
+          max.accumulateAndGet(ns, Math::max);
+        }
+        
+        else
+        {
+          max.lazySet(ns);
+        }
+      }
+      
+    }
+    
+    // Add this histogram's buckets to sum.
+    long addTo(long[] sum)
+    {
+      
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        sum[i] += counts.get(i);
+      }
+      
+      return max.get();
+      
+    }
+    
+    // The value at least p of the recorded values are under, from a sum of buckets.
+    static long percentile(long[] sum, double p)
+    {
+      
+      long total = 0;
+      
+      for (long n : sum)
+      {
+        total += n;
+      }
+      
+      long want = (long)Math.ceil(p * total);
+      long seen = 0;
+      
+      for (int i = 0; i < BUCKETS; i++)
+      {
+        seen += sum[i];
+        
+        if (seen >= want && seen > 0)
+        {
+          return value(i + 1) - 1;
+        }
+      }
+      
+      return 0;
+      
+    }
+    
+    static private int index(long v)
+    {
+      
+      if (v < 16)
+      {
+        return (int)v;
+      }
+      
+      int shift = 63 - Long.numberOfLeadingZeros(v) - 3;
+      
+      return shift * 8 + (int)(v >>> shift);
+      
+    }
+    
+    // Smallest value that goes in bucket i.
+    static private long value(int i)
+    {
+      
+      if (i < 16)
+      {
+        return i;
+      }
+      
+      return ((i & 7) + 8L) << ((i >> 3) - 1);
+      
+    }
+    
+  }
+  
+}
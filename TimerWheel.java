@@ -0,0 +1,181 @@
+import java.io.*;
+import java.util.*;
+
+// Hashed timer wheel, for the timeouts of an event loop's connections. Time is cut in ticks, and a timer due at some
+// tick is kept in the slot that tick hashes to, in a doubly linked list, so scheduling and cancelling a timer is O(1)
+// and each tick only looks at one slot. Timers due more than a turn of the wheel ahead share their slot with nearer
+// ones and just stay there until their own tick comes.
+//
+// Not thread safe, a wheel belongs to one event loop.
+class TimerWheel
+{
+  
+  interface Handler
+  {
+    void expired(Timer timer, long now) throws IOException;
+  }
+  
+  // One per thing that can time out, reused for every schedule(). Only in a slot while scheduled.
+  static class Timer
+  {
+    
+    final Object attachment;
+    
+    private long tick;
+    private Timer prev;
+    private Timer next;
+    private boolean scheduled;
+    
+    Timer(Object attachment)
+    {
+      this.attachment = attachment;
+    }
+    
+    boolean scheduled()
+    {
+      return scheduled;
+    }
+    
+  }
+  
+  private final Timer[] slots;
+  private final long tickNanos;
+  private final long start;
+  
+  // The next tick to expire, and how many timers are scheduled.
+  private long current;
+  private int count;
+  
+  // Timers expiring in this advance(), fired after the slots are walked so the handler may schedule and cancel.
+  private final ArrayList<Timer> expiring = new ArrayList<>();
+  
+  // slots must be a power of two.
+  TimerWheel(int slots, long tickNanos, long now)
+  {
+    this.slots = new Timer[slots];
+    this.tickNanos = tickNanos;
+    this.start = now;
+    this.current = 0;
+  }
+  
+  // Have timer expire at deadline (System.nanoTime() time), or at the next tick if that's already past. A timer that
+  // was scheduled before is moved.
+  void schedule(Timer timer, long deadline)
+  {
+    
+    cancel(timer);
+    
+    long tick = Math.max(current, (deadline - start + tickNanos - 1) / tickNanos);
+    int slot = (int)(tick & (slots.length - 1));
+    
+    timer.tick = tick;
+    timer.prev = null;
+    timer.next = slots[slot];
+    
+    if (timer.next != null)
+    {
+      timer.next.prev = timer;
+    }
+    
+    slots[slot] = timer;
+    timer.scheduled = true;
+    count++;
+    
+  }
+  
+  void cancel(Timer timer)
+  {
+    
+    if (!timer.scheduled)
+    {
+      return;
+    }
+    
+    if (timer.prev != null)
+    {
+      timer.prev.next = timer.next;
+    }
+    
+    else
+    {
+      slots[(int)(timer.tick & (slots.length - 1))] = timer.next;
+    }
+    
+    if (timer.next != null)
+    {
+      timer.next.prev = timer.prev;
+    }
+    
+    timer.prev = null;
+    timer.next = null;
+    timer.scheduled = false;
+    count--;
+    
+  }
+  
+  boolean isEmpty()
+  {
+    return count == 0;
+  }
+  
+  // Nanoseconds from now until the next tick is due, for the select() timeout.
+  long untilNextTick(long now)
+  {
+    return Math.max(0, start + current * tickNanos - now);
+  }
+  
+  // Expire every timer due by now.
+  void advance(long now, Handler handler) throws IOException
+  {
+    
+    long to = (now - start) / tickNanos;
+    
+    if (to < current)
+    {
+      return;
+    }
+    
+    // After a long sleep, one turn of the wheel covers every slot.
+    long from = Math.max(current, to - slots.length + 1);
+    
+    current = to + 1;
+    
+    if (count == 0)
+    {
+      return;
+    }
+    
+    for (long tick = from; tick <= to; tick++)
+    {
+      Timer t = slots[(int)(tick & (slots.length - 1))];
+      
+      while (t != null)
+      {
+        Timer next = t.next;
+        
+        if (t.tick <= to)
+        {
+          cancel(t);
+          expiring.add(t);
+        }
+        
+        t = next;
+      }
+    }
+    
+    try
+    {
+      for (Timer t : expiring)
+      {
+        handler.expired(t, now);
+      }
+    }
+    
+    finally
+    {
+      expiring.clear();
+    }
+    
+  }
+  
+}
@@ -0,0 +1,51 @@
+// A token bucket, kept as the time at which it would be full again rather than as a count of tokens, so it only
+// needs refilling in the arithmetic of take() and costs one long. Each token takes 1/rate of a second to come back,
+// and at most burst of them can be saved up.
+//
+// Not thread safe, whoever shares one has to lock around it.
+class TokenBucket
+{
+  
+  // Nanoseconds a token takes to come back, and the most that may be owed, burst tokens' worth.
+  private final long cost;
+  private final long depth;
+  
+  // When the bucket is full again, having paid back what was taken. In the past once it is.
+  private long full;
+  
+  TokenBucket(long rate, long burst)
+  {
+    this.cost = Math.max(1, 1000000000L / Math.max(1, rate));
+    this.depth = cost * Math.max(1, burst);
+    this.full = Long.MIN_VALUE / 2;
+  }
+  
+  // Take n tokens at time now (System.nanoTime()), if there are that many. False leaves the bucket as it was.
+  boolean take(long now, long n)
+  {
+    
+    long after = Math.max(full, now) + n * cost;
+    
+    if (after - now > depth)
+    {
+      return false;
+    }
+    
+    full = after;
+    
+    return true;
+    
+  }
+  
+  // Take n tokens at time now whether there are that many or not, running into debt. Nanoseconds until the debt is
+  // paid back and the bucket is within its burst again, 0 if it is already.
+  long charge(long now, long n)
+  {
+    
+    full = Math.max(full, now) + n * cost;
+    
+    return Math.max(0, full - now - depth);
+    
+  }
+  
+}